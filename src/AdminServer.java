@@ -0,0 +1,170 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+/**
+ * Control channel of the server, a line based TCP service that only listens on the loopback address.
+ * Every command is answered with zero or more lines of output, followed by "OK" or "ERROR <reason>".
+ *
+ *   get [name]          show one or all settings
+ *   set name value      change a setting (timeout.ms, max.retries, max.transfers, write.quota.bytes,
+ *                       group.commit.batch, group.commit.delay.ms, source.rate.limit)
+ *   stats               show transfer counters and JVM resource usage
+ *   drain               stop accepting transfers, the running ones are finished
+ *   resume              accept transfers again
+ *   quit                close the connection
+ *
+ * E.g. "echo stats | nc 127.0.0.1 4971".
+ */
+public class AdminServer
+{
+    private static final int IDLE_TIMEOUT = 60 * 1000; // Milliseconds a connection may stay silent before it's closed
+
+    private final TFTPServer server;
+    private final ServerConfig config;
+    private final ServerSocket serverSocket;
+
+    /**
+     * Binds the admin port on the loopback address and starts accepting connections
+     * @param server server being controlled
+     * @param config configuration of the server
+     * @throws IOException if the port can't be bound
+     */
+    public AdminServer(TFTPServer server, ServerConfig config) throws IOException
+    {
+        this.server = server;
+        this.config = config;
+        this.serverSocket = new ServerSocket();
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), config.adminPort));
+
+        Thread thread = new Thread(this::acceptLoop, "admin-channel");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return port the admin channel listens at
+     */
+    public int getPort()
+    {
+        return serverSocket.getLocalPort();
+    }
+
+    private void acceptLoop()
+    {
+        while (!serverSocket.isClosed())
+        {
+            try
+            {
+                // Every connection gets its own thread, so an idle session doesn't lock the others out
+                Socket client = serverSocket.accept();
+                client.setSoTimeout(IDLE_TIMEOUT);
+                Thread thread = new Thread(() -> handle(client), "admin-connection");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Admin connection failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void handle(Socket client)
+    {
+        try (Socket socket = client)
+        {
+            serve(socket);
+        }
+        catch (SocketTimeoutException e)
+        {
+            System.out.println("Admin connection idle for too long, closing it.");
+        }
+        catch (IOException e)
+        {
+            System.out.println("Admin connection failed: " + e.getMessage());
+        }
+    }
+
+    private void serve(Socket client) throws IOException
+    {
+        BufferedReader in = new BufferedReader(new InputStreamReader(client.getInputStream(), StandardCharsets.UTF_8));
+        PrintWriter out = new PrintWriter(new OutputStreamWriter(client.getOutputStream(), StandardCharsets.UTF_8), true);
+
+        String line;
+        while ((line = in.readLine()) != null)
+        {
+            String[] words = line.trim().split("\\s+");
+            if (words[0].isEmpty())
+                continue;
+            if (words[0].equals("quit"))
+                break;
+
+            try
+            {
+                execute(words, out);
+                out.println("OK");
+            }
+            catch (IllegalArgumentException e)
+            {
+                out.println("ERROR " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Runs a single command
+     * @param words command and its arguments
+     * @param out receiver of the output
+     * @throws IllegalArgumentException if the command or its arguments are invalid
+     */
+    private void execute(String[] words, PrintWriter out)
+    {
+        switch (words[0])
+        {
+            case "get":
+                if (words.length == 1)
+                {
+                    for (String name : ServerConfig.names())
+                    {
+                        out.println(name + "=" + config.get(name) + (ServerConfig.isLive(name) ? "" : " (fixed)"));
+                    }
+                }
+                else
+                {
+                    out.println(words[1] + "=" + config.get(words[1]));
+                }
+                break;
+
+            case "set":
+                if (words.length != 3)
+                    throw new IllegalArgumentException("usage: set name value");
+                config.set(words[1], words[2]);
+                System.out.printf("Admin: %s set to %s\n", words[1], words[2]);
+                break;
+
+            case "stats":
+                for (Map.Entry<String, String> stat : server.stats().entrySet())
+                {
+                    out.println(stat.getKey() + "=" + stat.getValue());
+                }
+                break;
+
+            case "drain":
+                out.println("active.transfers=" + server.drain());
+                break;
+
+            case "resume":
+                server.resume();
+                break;
+
+            default:
+                throw new IllegalArgumentException("Unknown command: " + words[0]);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Packs the read folder into a single archive for the PackedArchiveBackend, see there for the layout. The archive
+ * is written next to its final name and moved into place once complete, so a server never maps half an archive.
+ *
+ * E.g. "java ArchivePacker TFTP/read/ TFTP/read.pack", then set read.archive=TFTP/read.pack and restart the server.
+ */
+public class ArchivePacker
+{
+    private static final String DEFAULT_READ_DIR = "TFTP/read/";
+    private static final String DEFAULT_ARCHIVE = "TFTP/read.pack";
+
+    /**
+     * A file to pack
+     */
+    private static class PackedFile
+    {
+        final Path path;
+        final byte[] name;
+        long dataOffset;
+        long size;
+        long modified;
+        IntegrityIndex.Entry checksums;
+
+        PackedFile(Path path, String name)
+        {
+            this.path = path;
+            this.name = name.getBytes(StandardCharsets.UTF_8);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length > 2)
+        {
+            System.err.println("usage: java ArchivePacker [read-dir] [archive]");
+            System.exit(1);
+        }
+
+        Path dir = Paths.get(args.length > 0 ? args[0] : DEFAULT_READ_DIR);
+        Path archive = Paths.get(args.length > 1 ? args[1] : DEFAULT_ARCHIVE);
+        try
+        {
+            long start = System.nanoTime();
+            int count = pack(dir, archive);
+            System.out.printf("Packed %d files from %s into %s (%d bytes) in %d ms\n", count, dir, archive,
+                    Files.size(archive), (System.nanoTime() - start) / 1000000);
+        }
+        catch (IOException e)
+        {
+            System.err.println("Could not pack " + dir + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Packs all regular files below a folder into an archive
+     * @param dir folder to pack
+     * @param archive archive to write, replaced if it exists
+     * @return number of files packed
+     * @throws IOException if a file can't be read or the archive can't be written
+     */
+    public static int pack(Path dir, Path archive) throws IOException
+    {
+        List<PackedFile> files = new ArrayList<>();
+        try (Stream<Path> paths = Files.walk(dir))
+        {
+            paths.filter(p -> Files.isRegularFile(p) && !p.toAbsolutePath().equals(archive.toAbsolutePath()))
+                    .forEach(p -> files.add(new PackedFile(p, dir.relativize(p).toString())));
+        }
+
+        // Sorted by the bytes of the names, the order the backend searches in
+        files.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+
+        Path temp = archive.resolveSibling(archive.getFileName() + ".tmp");
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            long position = PackedArchiveBackend.HEADER_SIZE;
+            out.position(position);
+
+            ByteBuffer buf = ByteBuffer.allocate(64 * 1024);
+            for (PackedFile file : files)
+            {
+                // The size is what was actually copied, in case the file changes while it's packed
+                file.dataOffset = position;
+                file.modified = Files.readAttributes(file.path, BasicFileAttributes.class).lastModifiedTime().toMillis();
+                IntegrityIndex.Checksum checksum = new IntegrityIndex.Checksum();
+                try (FileChannel in = FileChannel.open(file.path, StandardOpenOption.READ))
+                {
+                    while (in.read(buf) > 0)
+                    {
+                        buf.flip();
+                        checksum.update(buf.array(), 0, buf.limit());
+                        while (buf.hasRemaining())
+                        {
+                            out.write(buf);
+                        }
+                        buf.clear();
+                    }
+                }
+                file.checksums = checksum.finish(file.modified);
+                file.size = checksum.size();
+                position += file.size;
+            }
+
+            long namesOffset = position;
+            int nameOffset = 0;
+            ByteBuffer index = ByteBuffer.allocate(files.size() * PackedArchiveBackend.RECORD_SIZE);
+            for (PackedFile file : files)
+            {
+                out.write(ByteBuffer.wrap(file.name));
+                index.putInt(nameOffset).putInt(file.name.length).putLong(file.dataOffset).putLong(file.size)
+                        .putLong(file.modified).putInt(file.checksums.crc32c).putInt(0).put(file.checksums.sha256);
+                nameOffset += file.name.length;
+            }
+            long indexOffset = namesOffset + nameOffset;
+
+            index.flip();
+            while (index.hasRemaining())
+            {
+                out.write(index);
+            }
+
+            if (out.position() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Archive would be larger than 2GB");
+            }
+
+            // The header goes in last, so an archive cut short is never mistaken for a valid one
+            ByteBuffer header = ByteBuffer.allocate(PackedArchiveBackend.HEADER_SIZE);
+            header.put(PackedArchiveBackend.MAGIC).putInt(PackedArchiveBackend.VERSION).putInt(files.size())
+                    .putLong(indexOffset).putLong(namesOffset).flip();
+            out.write(header, 0);
+            out.force(true);
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+
+        Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return files.size();
+    }
+}
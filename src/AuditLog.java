@@ -0,0 +1,331 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary append-only log of all transfers. The log is written to memory-mapped segment files, so appending a
+ * record is a copy into memory and never blocks on disk I/O. Transfer threads reserve space for their record
+ * with a single atomic add, only switching to a new segment takes a lock.
+ *
+ * Each record is stored as a 4-byte length followed by the payload. The length is written last, so a reader
+ * that finds a length of 0 has reached the end of the written part of a segment.
+ *
+ * The mapped segments are forced to disk by a background thread, every FORCE_INTERVAL_MS and whenever FORCE_BYTES
+ * have been appended since the last force, so an OS crash loses at most the last moment of the log. Appending
+ * only wakes that thread up. close() forces whatever is left.
+ */
+public class AuditLog
+{
+    public static final String SEGMENT_PREFIX = "audit-";
+    public static final String SEGMENT_SUFFIX = ".log";
+    public static final int SEGMENT_SIZE = 16 * 1024 * 1024;
+
+    // Constants related to forcing the log to disk
+    private static final int FORCE_INTERVAL_MS = 1000; // Appended records are forced at least this often
+    private static final int FORCE_BYTES = 1024 * 1024; // Appending this much forces the log early
+
+    // Result codes stored in the records
+    public static final byte RESULT_OK = 0;
+    public static final byte RESULT_FAILED = 1;
+
+    private final Path directory;
+    private final int maxSegments;
+    private volatile Segment current;
+
+    // Segments that were full when the log rotated, forced once more by the flusher
+    private final List<Segment> retired = new ArrayList<>();
+    private final AtomicInteger unforcedBytes = new AtomicInteger(0);
+    private final Thread flusher;
+    private volatile boolean closed = false;
+
+    /**
+     * A mapped segment file and the position of the next free slot
+     */
+    private static class Segment
+    {
+        final int number;
+        final MappedByteBuffer buffer;
+        final AtomicInteger position = new AtomicInteger(0);
+
+        Segment(int number, MappedByteBuffer buffer)
+        {
+            this.number = number;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * Opens the log, starting a new segment after any existing ones
+     * @param directory directory for the segment files
+     * @param maxSegments number of segments to keep, older ones are deleted
+     * @throws IOException if the first segment can't be created
+     */
+    public AuditLog(String directory, int maxSegments) throws IOException
+    {
+        this.directory = Paths.get(directory);
+        this.maxSegments = maxSegments;
+        Files.createDirectories(this.directory);
+
+        int[] existing = segmentNumbers(this.directory.toFile());
+        current = openSegment(existing.length > 0 ? existing[existing.length - 1] + 1 : 0);
+
+        flusher = new Thread(this::flushLoop, "audit-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /**
+     * Forces the log to disk and stops the flusher. Records appended afterwards are only forced by the OS.
+     */
+    public void close()
+    {
+        closed = true;
+        LockSupport.unpark(flusher);
+        force();
+    }
+
+    /**
+     * Appends the record of a finished transfer. Never throws, a transfer mustn't fail because of the log.
+     * @param stats counters of the transfer
+     */
+    public void append(TransferStats stats)
+    {
+        byte[] record = encode(stats);
+
+        while (true)
+        {
+            Segment segment = current;
+            int position = segment.position.getAndAdd(record.length);
+
+            if (position + record.length <= SEGMENT_SIZE)
+            {
+                // Payload first, length last, so readers never see a half-written record
+                ByteBuffer slot = segment.buffer.duplicate();
+                slot.position(position + 4);
+                slot.put(record, 4, record.length - 4);
+                segment.buffer.putInt(position, record.length);
+
+                if (unforcedBytes.addAndGet(record.length) >= FORCE_BYTES)
+                    LockSupport.unpark(flusher);
+                return;
+            }
+
+            // Segment is full, the first thread to notice opens the next one, the others retry
+            synchronized (this)
+            {
+                if (current == segment)
+                {
+                    try
+                    {
+                        current = openSegment(segment.number + 1);
+                        retired.add(segment);
+                    }
+                    catch (IOException e)
+                    {
+                        System.out.println("Could not rotate audit log, dropping record: " + e.getMessage());
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    private void flushLoop()
+    {
+        while (!closed)
+        {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(FORCE_INTERVAL_MS));
+            force();
+        }
+    }
+
+    /**
+     * Forces the retired segments and the current one to disk
+     */
+    private void force()
+    {
+        List<Segment> segments;
+        synchronized (this)
+        {
+            segments = new ArrayList<>(retired);
+            retired.clear();
+            segments.add(current);
+        }
+
+        // Only the records appended so far are sure to be covered
+        if (unforcedBytes.getAndSet(0) == 0 && segments.size() == 1)
+            return;
+
+        for (Segment segment : segments)
+        {
+            try
+            {
+                segment.buffer.force();
+            }
+            catch (UncheckedIOException e)
+            {
+                System.out.println("Could not force the audit log: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Serializes a record, leaving room for the length in front
+     * @param stats counters of the transfer
+     * @return the record
+     */
+    private static byte[] encode(TransferStats stats)
+    {
+        byte[] address = stats.client.getAddress().getAddress();
+        byte[] file = stats.file.getBytes();
+        int fileLength = Math.min(file.length, Short.MAX_VALUE);
+
+        ByteBuffer buf = ByteBuffer.allocate(4 + 8 + 8 + 8 + 4 + 1 + 1 + 1 + address.length + 2 + 2 + fileLength);
+        buf.putInt(0); // length, written when the record is published
+        buf.putLong(stats.startTime);
+        buf.putLong(stats.durationMillis());
+        buf.putLong(stats.bytes);
+        buf.putInt(stats.retransmits);
+        buf.put(stats.success ? RESULT_OK : RESULT_FAILED);
+        buf.put((byte) stats.opcode);
+        buf.put((byte) address.length);
+        buf.put(address);
+        buf.putShort((short) stats.client.getPort());
+        buf.putShort((short) fileLength);
+        buf.put(file, 0, fileLength);
+        return buf.array();
+    }
+
+    /**
+     * Creates and maps a new segment, deleting segments beyond the limit
+     * @param number sequence number of the segment
+     * @return the segment
+     * @throws IOException if the segment can't be created
+     */
+    private Segment openSegment(int number) throws IOException
+    {
+        Path file = directory.resolve(segmentName(number));
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_SIZE);
+        }
+
+        int[] numbers = segmentNumbers(directory.toFile());
+        for (int i = 0; i < numbers.length - maxSegments; i++)
+        {
+            Files.deleteIfExists(directory.resolve(segmentName(numbers[i])));
+        }
+
+        return new Segment(number, buffer);
+    }
+
+    /**
+     * @param number sequence number of a segment
+     * @return file name of the segment
+     */
+    public static String segmentName(int number)
+    {
+        return String.format("%s%08d%s", SEGMENT_PREFIX, number, SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Lists the segments in a directory
+     * @param directory directory to look in
+     * @return sequence numbers of the segments, in ascending order
+     */
+    public static int[] segmentNumbers(File directory)
+    {
+        String[] names = directory.list((dir, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX));
+        if (names == null)
+        {
+            return new int[0];
+        }
+
+        int[] numbers = new int[names.length];
+        for (int i = 0; i < names.length; i++)
+        {
+            numbers[i] = Integer.parseInt(names[i].substring(SEGMENT_PREFIX.length(),
+                    names[i].length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(numbers);
+        return numbers;
+    }
+
+    /**
+     * Decodes the record at the current position of buf, used by readers of the log
+     * @param buf segment contents, positioned at a record
+     * @return the record, null if there are no more records in the segment
+     */
+    public static Record decode(ByteBuffer buf)
+    {
+        if (buf.remaining() < 4)
+        {
+            return null;
+        }
+
+        int start = buf.position();
+        int length = buf.getInt();
+        if (length <= 0 || start + length > buf.limit())
+        {
+            return null;
+        }
+
+        Record record = new Record();
+        record.startTime = buf.getLong();
+        record.durationMillis = buf.getLong();
+        record.bytes = buf.getLong();
+        record.retransmits = buf.getInt();
+        record.result = buf.get();
+        record.opcode = buf.get();
+        byte[] address = new byte[buf.get()];
+        buf.get(address);
+        int port = buf.getShort() & 0xffff;
+        byte[] file = new byte[buf.getShort()];
+        buf.get(file);
+        record.file = new String(file);
+
+        try
+        {
+            record.client = new InetSocketAddress(InetAddress.getByAddress(address), port);
+        }
+        catch (UnknownHostException e)
+        {
+            // Only thrown for addresses of illegal length
+            record.client = null;
+        }
+
+        buf.position(start + length);
+        return record;
+    }
+
+    /**
+     * A decoded record
+     */
+    public static class Record
+    {
+        public long startTime;
+        public long durationMillis;
+        public long bytes;
+        public int retransmits;
+        public byte result;
+        public byte opcode;
+        public InetSocketAddress client;
+        public String file;
+    }
+}
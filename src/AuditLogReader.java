@@ -0,0 +1,102 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+/**
+ * Tool for scanning the audit log written by the server. Segments are mapped and decoded in place.
+ *
+ * usage: java AuditLogReader [directory] [-client address] [-file text] [-failed] [-retransmits n]
+ */
+public class AuditLogReader
+{
+    private static final String DEFAULT_DIR = "TFTP/audit/";
+
+    private String client = null; // Only records from this client address
+    private String file = null; // Only records whose filename contains this text
+    private boolean failedOnly = false;
+    private int minRetransmits = 0;
+
+    public static void main(String[] args) throws IOException
+    {
+        AuditLogReader reader = new AuditLogReader();
+        String directory = DEFAULT_DIR;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-client": reader.client = args[++i]; break;
+                case "-file": reader.file = args[++i]; break;
+                case "-failed": reader.failedOnly = true; break;
+                case "-retransmits": reader.minRetransmits = Integer.parseInt(args[++i]); break;
+                default:
+                    if (args[i].startsWith("-"))
+                    {
+                        System.err.printf("usage: java %s [directory] [-client address] [-file text] [-failed] " +
+                                "[-retransmits n]\n", AuditLogReader.class.getCanonicalName());
+                        System.exit(1);
+                    }
+                    directory = args[i];
+            }
+        }
+
+        int matches = 0;
+        for (int number : AuditLog.segmentNumbers(new File(directory)))
+        {
+            matches += reader.scan(Paths.get(directory, AuditLog.segmentName(number)));
+        }
+        System.out.println(matches + " matching transfers");
+    }
+
+    /**
+     * Prints the matching records of a segment
+     * @param segment segment file
+     * @return number of matching records
+     * @throws IOException if the segment can't be read
+     */
+    private int scan(Path segment) throws IOException
+    {
+        MappedByteBuffer buf;
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ))
+        {
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        int matches = 0;
+        AuditLog.Record record;
+        while ((record = AuditLog.decode(buf)) != null)
+        {
+            if (matches(record))
+            {
+                matches++;
+                System.out.printf("%s %s %s:%d %s %d bytes %d ms %d retransmits %s\n",
+                        format.format(new Date(record.startTime)),
+                        record.opcode == 1 ? "RRQ" : "WRQ",
+                        record.client == null ? "?" : record.client.getAddress().getHostAddress(),
+                        record.client == null ? 0 : record.client.getPort(),
+                        record.file, record.bytes, record.durationMillis, record.retransmits,
+                        record.result == AuditLog.RESULT_OK ? "OK" : "FAILED");
+            }
+        }
+        return matches;
+    }
+
+    /**
+     * @param record record to check
+     * @return true if the record passes all filters
+     */
+    private boolean matches(AuditLog.Record record)
+    {
+        return (client == null || record.client != null && record.client.getAddress().getHostAddress().equals(client))
+                && (file == null || record.file.contains(file))
+                && (!failedOnly || record.result != AuditLog.RESULT_OK)
+                && record.retransmits >= minRetransmits;
+    }
+}
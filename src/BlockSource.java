@@ -0,0 +1,19 @@
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Sequential source of the data blocks sent in a read request
+ */
+public interface BlockSource extends Closeable
+{
+    /**
+     * Copies the next block of data into buf. Fewer than length bytes are only returned at the end of the data,
+     * which makes the block the last one of the transfer.
+     * @param buf buffer to copy the data into
+     * @param offset where in buf the data starts
+     * @param length maximum number of bytes to copy, i.e., the block size
+     * @return number of bytes copied
+     * @throws IOException if the data can't be read
+     */
+    int nextBlock(byte[] buf, int offset, int length) throws IOException;
+}
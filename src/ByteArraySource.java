@@ -0,0 +1,32 @@
+/**
+ * Serves the blocks of a read request from data that is already in memory, e.g. a cached variant of a file
+ */
+public class ByteArraySource implements BlockSource
+{
+    private final byte[] data;
+    private int position;
+
+    /**
+     * @param data data to send
+     * @param offset position to start at
+     */
+    public ByteArraySource(byte[] data, long offset)
+    {
+        this.data = data;
+        this.position = (int) Math.min(offset, data.length);
+    }
+
+    @Override
+    public int nextBlock(byte[] buf, int offset, int length)
+    {
+        int n = Math.min(length, data.length - position);
+        System.arraycopy(data, position, buf, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,34 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Serves the blocks of a read request from a buffer, e.g. a slice of a memory-mapped archive
+ */
+public class ByteBufferSource implements BlockSource
+{
+    private final ByteBuffer data;
+    private int position;
+
+    /**
+     * @param data data to send, from index 0 to its limit
+     * @param offset position to start at
+     */
+    public ByteBufferSource(ByteBuffer data, long offset)
+    {
+        this.data = data;
+        this.position = (int) Math.min(offset, data.limit());
+    }
+
+    @Override
+    public int nextBlock(byte[] buf, int offset, int length)
+    {
+        int n = Math.min(length, data.limit() - position);
+        data.get(position, buf, offset, n);
+        position += n;
+        return n;
+    }
+
+    @Override
+    public void close()
+    {
+    }
+}
@@ -0,0 +1,676 @@
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed store for uploads. Files are cut into chunks at content-defined boundaries (a rolling gear
+ * hash), so an insertion early in a file only changes the chunks around it. Each chunk is stored once, under its
+ * SHA-256, and a file is stored as a manifest listing its chunks. Near-identical uploads, e.g. logs and backups
+ * of the same device, then only add the chunks that differ.
+ *
+ * Layout below the store folder:
+ *   chunks/ab/abcdef...      chunk data, named by SHA-256, grouped by the first two hex digits
+ *   manifests/name           "sha256 size" of the file, followed by a "sha256 length" line per chunk
+ *   staging/                 manifests being written, moved into manifests/ once complete. Stored names can't
+ *                            reach this folder, so whatever is left here at startup is from a crash.
+ *
+ * Chunks are reference counted in memory (rebuilt from the manifests at startup) and deleted when the last
+ * manifest using them is discarded. The maps are changed under one lock, but chunk files are written and deleted
+ * outside it. A chunk being written or deleted has a pending operation in the map, and later uploads of the same
+ * chunk wait for that operation instead of for the lock.
+ *
+ * With a Durability, a manifest and its chunks are forced to disk before the manifest is moved into place, and
+ * its folders after, so a stored file is never visible before it would survive a crash. The forcing is done
+ * outside the lock, so concurrent uploads can share a group commit.
+ */
+public class ChunkStore
+{
+    public static final String DIRECTORY = ".cas"; // Name of the store folder inside the write folder
+
+    // Constants related to chunking
+    private static final int MIN_CHUNK = 2 * 1024;
+    private static final int MAX_CHUNK = 64 * 1024;
+    private static final long BOUNDARY_MASK = 0x1fffL << 51; // 13 bits, a boundary every 8 KB on average
+    private static final long[] GEAR = new long[256];
+
+    static
+    {
+        // Fixed seed, the boundaries have to be the same in every run
+        SplittableRandom random = new SplittableRandom(0x54465450L);
+        for (int i = 0; i < GEAR.length; i++)
+        {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /**
+     * A stored file: its checksum, size and chunks
+     */
+    public static class Manifest
+    {
+        public final String sha256;
+        public final long size;
+        final String[] chunks;
+        final int[] lengths;
+        long newBytes; // Bytes of chunks that weren't stored before, only known right after ingest()
+
+        Manifest(String sha256, long size, String[] chunks, int[] lengths)
+        {
+            this.sha256 = sha256;
+            this.size = size;
+            this.chunks = chunks;
+            this.lengths = lengths;
+        }
+
+        /**
+         * @return number of chunks
+         */
+        public int chunkCount()
+        {
+            return chunks.length;
+        }
+
+        /**
+         * @return bytes of chunks that were new to the store when the file was ingested
+         */
+        public long newBytes()
+        {
+            return newBytes;
+        }
+    }
+
+    /**
+     * Forces files and folders to disk, e.g. through the GroupCommitter
+     */
+    public interface Durability
+    {
+        /**
+         * @param files files whose data has to be forced
+         * @param folders folders whose entries have to be forced, after the files
+         * @throws IOException if a file or folder couldn't be forced
+         * @throws InterruptedException if the wait was interrupted
+         */
+        void force(List<Path> files, List<Path> folders) throws IOException, InterruptedException;
+    }
+
+    private final Path chunkDir;
+    private final Path manifestDir;
+    private final Path stagingDir;
+    private final Durability durability;
+    private final Map<String, Manifest> manifests = new HashMap<>();
+    private final Map<String, String> namesBySha256 = new HashMap<>();
+    private final Map<String, Integer> references = new HashMap<>();
+    private final Map<String, CompletableFuture<Void>> pending = new HashMap<>(); // Chunk writes and deletes
+    private long storedBytes = 0;
+
+    /**
+     * Opens the store, creating it if needed, and removes chunks no manifest refers to (left by a crash)
+     * @param directory store folder
+     * @param durability forces stored files to disk, null if they don't have to be durable
+     * @throws IOException if the store can't be read
+     */
+    public ChunkStore(String directory, Durability durability) throws IOException
+    {
+        this.durability = durability;
+        Path root = Paths.get(directory).normalize();
+        this.chunkDir = root.resolve("chunks");
+        this.manifestDir = root.resolve("manifests");
+        this.stagingDir = root.resolve("staging");
+        Files.createDirectories(chunkDir);
+        Files.createDirectories(manifestDir);
+        Files.createDirectories(stagingDir);
+
+        try (Stream<Path> files = Files.list(stagingDir))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                Files.delete(file);
+            }
+        }
+
+        try (Stream<Path> files = Files.walk(manifestDir))
+        {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+            {
+                Manifest manifest = readManifest(file);
+                String name = manifestDir.relativize(file).toString();
+                manifests.put(name, manifest);
+                namesBySha256.put(manifest.sha256, name);
+                for (int i = 0; i < manifest.chunks.length; i++)
+                {
+                    if (references.merge(manifest.chunks[i], 1, Integer::sum) == 1)
+                        storedBytes += manifest.lengths[i];
+                }
+            }
+        }
+
+        try (Stream<Path> files = Files.walk(chunkDir))
+        {
+            for (Path file : (Iterable<Path>) files.filter(Files::isRegularFile)::iterator)
+            {
+                if (!references.containsKey(file.getFileName().toString()))
+                    Files.delete(file);
+            }
+        }
+    }
+
+    /**
+     * @param name name of the file, relative to the write folder
+     * @return true if the name would end up inside the store folder
+     */
+    public static boolean isReserved(String name)
+    {
+        return name.equals(DIRECTORY) || name.startsWith(DIRECTORY + "/") || name.startsWith(DIRECTORY + "\\");
+    }
+
+    /**
+     * @param name name of the file
+     * @return the manifest of the file, null if there is no such file
+     */
+    public synchronized Manifest lookup(String name)
+    {
+        return manifests.get(name);
+    }
+
+    /**
+     * @return total size of the unique chunks, what the store occupies on disk apart from the manifests
+     */
+    public synchronized long storedBytes()
+    {
+        return storedBytes;
+    }
+
+    /**
+     * Cuts a file into chunks and stores the chunks that aren't stored yet. The chunks are referenced by the
+     * returned manifest until it's either committed under a name or discarded.
+     * @param file file to ingest
+     * @param sha256 SHA-256 of the whole file, as a hex-string
+     * @return manifest of the file
+     * @throws IOException if the file can't be read or a chunk can't be written
+     */
+    public Manifest ingest(Path file, String sha256) throws IOException
+    {
+        List<String> chunks = new ArrayList<>();
+        List<Integer> lengths = new ArrayList<>();
+        long newBytes = 0;
+        long size = 0;
+
+        byte[] chunk = new byte[MAX_CHUNK];
+        byte[] buf = new byte[64 * 1024];
+        int length = 0;
+        long hash = 0;
+
+        try (InputStream in = Files.newInputStream(file))
+        {
+            int read;
+            while ((read = in.read(buf)) > 0)
+            {
+                for (int i = 0; i < read; i++)
+                {
+                    chunk[length++] = buf[i];
+                    hash = (hash << 1) + GEAR[buf[i] & 0xff];
+
+                    if (length >= MIN_CHUNK && (hash & BOUNDARY_MASK) == 0 || length == MAX_CHUNK)
+                    {
+                        newBytes += addChunk(chunk, length, chunks, lengths);
+                        size += length;
+                        length = 0;
+                        hash = 0;
+                    }
+                }
+            }
+
+            if (length > 0)
+            {
+                newBytes += addChunk(chunk, length, chunks, lengths);
+                size += length;
+            }
+        }
+        catch (IOException e)
+        {
+            // Drop the references taken so far
+            discard(toManifest(sha256, size, chunks, lengths));
+            throw e;
+        }
+
+        Manifest manifest = toManifest(sha256, size, chunks, lengths);
+        manifest.newBytes = newBytes;
+        return manifest;
+    }
+
+    /**
+     * Stores a manifest under a name
+     * @param name name of the file
+     * @param manifest manifest returned by ingest()
+     * @throws FileAlreadyExistsException if a file with the name is stored already, the manifest is discarded
+     * @throws IOException if the manifest can't be written or forced to disk, the manifest is discarded
+     * @throws InterruptedException if waiting for the manifest to be forced was interrupted, it's discarded
+     */
+    public void commit(String name, Manifest manifest) throws IOException, InterruptedException
+    {
+        Path path = manifestDir.resolve(name).normalize();
+        Path staged = null;
+        try
+        {
+            synchronized (this)
+            {
+                if (manifests.containsKey(name))
+                    throw new FileAlreadyExistsException(name);
+            }
+
+            staged = writeStaged(manifest);
+            if (durability != null)
+            {
+                // The chunk folders and chunks/ are forced as well, so new chunks and chunk folders are recorded
+                List<Path> files = new ArrayList<>();
+                List<Path> folders = new ArrayList<>();
+                files.add(staged);
+                folders.add(chunkDir);
+                for (String chunk : manifest.chunks)
+                {
+                    files.add(chunkPath(chunk));
+                    folders.add(chunkPath(chunk).getParent());
+                }
+                durability.force(files, folders);
+            }
+
+            synchronized (this)
+            {
+                if (manifests.containsKey(name))
+                    throw new FileAlreadyExistsException(name);
+
+                Files.createDirectories(path.getParent());
+                Files.move(staged, path, StandardCopyOption.ATOMIC_MOVE);
+                manifests.put(name, manifest);
+                namesBySha256.put(manifest.sha256, name);
+            }
+        }
+        catch (IOException | InterruptedException e)
+        {
+            discard(manifest);
+            if (staged != null)
+                Files.deleteIfExists(staged);
+            throw e;
+        }
+
+        if (durability == null)
+            return;
+
+        try
+        {
+            // The data was forced while staged, only the folders up to manifests/ have new entries
+            List<Path> folders = new ArrayList<>();
+            for (Path folder = path.getParent(); !folder.equals(manifestDir.getParent()); folder = folder.getParent())
+            {
+                folders.add(folder);
+            }
+            durability.force(Collections.emptyList(), folders);
+        }
+        catch (IOException | InterruptedException e)
+        {
+            // Not durable, so the file isn't stored after all
+            synchronized (this)
+            {
+                manifests.remove(name);
+                namesBySha256.remove(manifest.sha256, name);
+                Files.deleteIfExists(path);
+            }
+            discard(manifest);
+            throw e;
+        }
+    }
+
+    /**
+     * Drops the references of a manifest that won't be committed, chunks no longer used are deleted
+     * @param manifest manifest returned by ingest()
+     */
+    public void discard(Manifest manifest)
+    {
+        List<String> unused = new ArrayList<>();
+        List<CompletableFuture<Void>> previous = new ArrayList<>();
+        List<CompletableFuture<Void>> deletes = new ArrayList<>();
+
+        synchronized (this)
+        {
+            for (int i = 0; i < manifest.chunks.length; i++)
+            {
+                String sha256 = manifest.chunks[i];
+                Integer count = references.get(sha256);
+                if (count == null)
+                    continue;
+
+                if (count > 1)
+                {
+                    references.put(sha256, count - 1);
+                    continue;
+                }
+
+                references.remove(sha256);
+                storedBytes -= manifest.lengths[i];
+                CompletableFuture<Void> delete = new CompletableFuture<>();
+                unused.add(sha256);
+                previous.add(pending.put(sha256, delete));
+                deletes.add(delete);
+            }
+        }
+
+        for (int i = 0; i < unused.size(); i++)
+        {
+            String sha256 = unused.get(i);
+            try
+            {
+                // A failed write may still have left the chunk behind
+                await(previous.get(i));
+            }
+            catch (IOException e)
+            {
+                // Deleted anyway
+            }
+
+            try
+            {
+                Files.deleteIfExists(chunkPath(sha256));
+            }
+            catch (IOException e)
+            {
+                System.out.println("Could not delete unused chunk " + sha256 + ": " + e.getMessage());
+            }
+            finish(sha256, deletes.get(i));
+        }
+    }
+
+    /**
+     * Stores another name for a file that is already stored with the same content
+     * @param sha256 SHA-256 of the content, as a hex-string
+     * @param name new name
+     * @return true if a file with that content was found and linked
+     * @throws IOException if the manifest can't be written or forced to disk
+     * @throws InterruptedException if waiting for the manifest to be forced was interrupted
+     */
+    public boolean link(String sha256, String name) throws IOException, InterruptedException
+    {
+        Manifest manifest;
+        synchronized (this)
+        {
+            String existingName = namesBySha256.get(sha256.toLowerCase());
+            Manifest existing = existingName == null ? null : manifests.get(existingName);
+            if (existing == null)
+            {
+                return false;
+            }
+
+            for (String chunk : existing.chunks)
+            {
+                references.merge(chunk, 1, Integer::sum);
+            }
+            manifest = new Manifest(existing.sha256, existing.size, existing.chunks, existing.lengths);
+        }
+
+        commit(name, manifest);
+        return true;
+    }
+
+    /**
+     * Opens a stored file for reading
+     * @param manifest manifest of the file
+     * @param offset position to start at
+     * @return source of the file contents
+     */
+    public BlockSource open(Manifest manifest, long offset)
+    {
+        return new Source(manifest, offset);
+    }
+
+    /**
+     * Streams a stored file chunk by chunk, only one chunk is held in memory
+     */
+    private class Source implements BlockSource
+    {
+        private final Manifest manifest;
+        private int index = 0; // Next chunk to load
+        private byte[] current = new byte[0];
+        private int position = 0;
+
+        Source(Manifest manifest, long offset)
+        {
+            this.manifest = manifest;
+
+            // Skip whole chunks without reading them
+            while (index < manifest.chunks.length && offset >= manifest.lengths[index])
+            {
+                offset -= manifest.lengths[index++];
+            }
+            this.position = (int) -offset; // Applied once the chunk is loaded
+        }
+
+        @Override
+        public int nextBlock(byte[] buf, int offset, int length) throws IOException
+        {
+            int n = 0;
+            while (n < length)
+            {
+                if (position >= current.length || position < 0)
+                {
+                    if (index == manifest.chunks.length)
+                        break;
+
+                    int skip = position < 0 ? -position : 0;
+                    current = Files.readAllBytes(chunkPath(manifest.chunks[index++]));
+                    position = skip;
+                    continue;
+                }
+
+                int copy = Math.min(length - n, current.length - position);
+                System.arraycopy(current, position, buf, offset + n, copy);
+                position += copy;
+                n += copy;
+            }
+            return n;
+        }
+
+        @Override
+        public void close()
+        {
+            current = null;
+        }
+    }
+
+    /**
+     * Stores a chunk, unless it's stored already, and adds a reference to it. If another upload is writing the same
+     * chunk, waits for that write instead.
+     * @return number of bytes written, 0 if the chunk was stored already
+     */
+    private long addChunk(byte[] chunk, int length, List<String> chunks, List<Integer> lengths) throws IOException
+    {
+        String sha256 = sha256Hex(chunk, length);
+        CompletableFuture<Void> previous;
+        CompletableFuture<Void> write = null;
+
+        synchronized (this)
+        {
+            int count = references.merge(sha256, 1, Integer::sum);
+            chunks.add(sha256);
+            lengths.add(length);
+            if (count > 1)
+            {
+                previous = pending.get(sha256);
+            }
+            else
+            {
+                // A delete of the chunk may still be running, the write waits for it
+                write = new CompletableFuture<>();
+                previous = pending.put(sha256, write);
+                storedBytes += length;
+            }
+        }
+
+        if (write == null)
+        {
+            // A failed write fails every upload of the chunk until its references are dropped
+            await(previous);
+            return 0;
+        }
+
+        try
+        {
+            try
+            {
+                await(previous);
+            }
+            catch (IOException e)
+            {
+                // The delete failed, the chunk is replaced below
+            }
+
+            Path path = chunkPath(sha256);
+            Path temp = path.resolveSibling(sha256 + ".tmp");
+            Files.createDirectories(path.getParent());
+            try (OutputStream out = Files.newOutputStream(temp))
+            {
+                out.write(chunk, 0, length);
+            }
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e)
+        {
+            // The failed write stays pending, so no one takes the chunk for stored
+            write.completeExceptionally(e);
+            throw e;
+        }
+
+        finish(sha256, write);
+        return length;
+    }
+
+    /**
+     * Waits for a pending write or delete of a chunk
+     * @param operation the operation, null if there is none
+     * @throws IOException if the operation failed
+     */
+    private static void await(CompletableFuture<Void> operation) throws IOException
+    {
+        if (operation == null)
+            return;
+
+        boolean interrupted = false;
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    operation.get();
+                    return;
+                }
+                catch (InterruptedException e)
+                {
+                    // Chunk operations are short, the wait isn't given up
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IOException("Chunk could not be stored", e.getCause());
+                }
+            }
+        }
+        finally
+        {
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Completes an operation on a chunk and removes it from the pending ones, unless a later one replaced it
+     * @param sha256 the chunk
+     * @param operation the completed operation
+     */
+    private void finish(String sha256, CompletableFuture<Void> operation)
+    {
+        synchronized (this)
+        {
+            pending.remove(sha256, operation);
+        }
+        operation.complete(null);
+    }
+
+    private static Manifest toManifest(String sha256, long size, List<String> chunks, List<Integer> lengths)
+    {
+        return new Manifest(sha256.toLowerCase(), size, chunks.toArray(new String[0]),
+                lengths.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    private Path chunkPath(String sha256)
+    {
+        return chunkDir.resolve(sha256.substring(0, 2)).resolve(sha256);
+    }
+
+    /**
+     * Writes a manifest to the staging folder
+     * @return the written file, to be moved into manifests/
+     */
+    private Path writeStaged(Manifest manifest) throws IOException
+    {
+        Path temp = Files.createTempFile(stagingDir, "manifest", ".tmp");
+
+        try
+        {
+            try (Writer out = Files.newBufferedWriter(temp, StandardCharsets.US_ASCII))
+            {
+                out.write(manifest.sha256 + " " + manifest.size + "\n");
+                for (int i = 0; i < manifest.chunks.length; i++)
+                {
+                    out.write(manifest.chunks[i] + " " + manifest.lengths[i] + "\n");
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        return temp;
+    }
+
+    private static Manifest readManifest(Path path) throws IOException
+    {
+        List<String> lines = Files.readAllLines(path, StandardCharsets.US_ASCII);
+        String[] header = lines.get(0).split(" ");
+
+        String[] chunks = new String[lines.size() - 1];
+        int[] lengths = new int[chunks.length];
+        for (int i = 0; i < chunks.length; i++)
+        {
+            String[] line = lines.get(i + 1).split(" ");
+            chunks[i] = line[0];
+            lengths[i] = Integer.parseInt(line[1]);
+        }
+        return new Manifest(header[0], Long.parseLong(header[1]), chunks, lengths);
+    }
+
+    private static String sha256Hex(byte[] data, int length)
+    {
+        try
+        {
+            MessageDigest sha = MessageDigest.getInstance("SHA-256");
+            sha.update(data, 0, length);
+            StringBuilder hex = new StringBuilder(64);
+            for (byte b : sha.digest())
+            {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,100 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compression of files sent with the "compress" option. Only codecs available in the JDK are supported.
+ */
+public class Compressor
+{
+    public static final String DEFLATE = "deflate"; // zlib-wrapped deflate
+    public static final String GZIP = "gzip";
+
+    // Compressed variants are only sent if they're smaller than this fraction of the original
+    private static final double MAX_RATIO = 0.9;
+
+    // File types that are already compressed
+    private static final String[] INCOMPRESSIBLE_EXTENSIONS = {".png", ".jpg", ".jpeg", ".gif", ".zip", ".gz",
+            ".tgz", ".bz2", ".xz", ".zst", ".7z", ".rar", ".mp3", ".mp4"};
+
+    /**
+     * Picks the first supported codec from the value of the compress-option
+     * @param requested comma-separated list of codecs, in order of preference
+     * @return the codec to use, null if none is supported
+     */
+    public static String choose(String requested)
+    {
+        if (requested == null)
+        {
+            return null;
+        }
+
+        for (String codec : requested.toLowerCase().split(","))
+        {
+            codec = codec.trim();
+            if (codec.equals(DEFLATE) || codec.equals(GZIP))
+            {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param file file to check
+     * @return true if the file type is known to be compressed already
+     */
+    public static boolean isIncompressible(Path file)
+    {
+        String name = file.getFileName().toString().toLowerCase();
+        for (String extension : INCOMPRESSIBLE_EXTENSIONS)
+        {
+            if (name.endsWith(extension))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compresses a file
+     * @param file file to compress
+     * @param codec codec to use
+     * @return the compressed file, null if compression doesn't reduce the size enough
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] compress(Path file, String codec) throws IOException
+    {
+        long size = Files.size(file);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream((int) Math.min(size / 2 + 64, Integer.MAX_VALUE));
+
+        if (codec.equals(GZIP))
+        {
+            try (OutputStream out = new GZIPOutputStream(compressed, 8192))
+            {
+                Files.copy(file, out);
+            }
+        }
+        else
+        {
+            Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+            try (OutputStream out = new DeflaterOutputStream(compressed, deflater, 8192))
+            {
+                Files.copy(file, out);
+            }
+            finally
+            {
+                // A deflater passed to the stream isn't released by the stream itself
+                deflater.end();
+            }
+        }
+
+        return compressed.size() < size * MAX_RATIO ? compressed.toByteArray() : null;
+    }
+}
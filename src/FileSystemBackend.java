@@ -0,0 +1,208 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Serves read requests from the read folder, through the in-memory ReadIndex that keeps track of its files.
+ * Checksums are kept in the integrity index of the folder, small files have their compressed and netascii variants
+ * cached, and large files are read through a ring shared by all transfers of the same file. Other files are read
+ * ahead privately.
+ */
+public class FileSystemBackend implements StorageBackend
+{
+    // Constants related to memory use
+    private static final int MAX_VARIANT_SOURCE = 16 * 1024 * 1024; // Larger files are always sent as-is
+    private static final int VARIANT_CACHE_SIZE = 64 * 1024 * 1024; // Total size of cached variants
+    private static final int SHARED_RING_SIZE = 8 * 1024 * 1024; // Ring shared by reads of a large file
+
+    private final ReadIndex index;
+    private final IntegrityIndex checksums;
+    private final int aheadBlocks;
+    private final Semaphore budget;
+
+    // Variants of files, validated against the checksums in the integrity index
+    private final VariantCache variants = new VariantCache(VARIANT_CACHE_SIZE);
+
+    // Rings of recently read chunks, shared by concurrent reads of files too large for a cached variant
+    private final Map<ReadIndex.Entry, SharedReadRing> sharedRings = new HashMap<>();
+
+    /**
+     * A file in the read folder
+     */
+    private class FileEntry implements Entry
+    {
+        private final ReadIndex.Entry file;
+
+        FileEntry(ReadIndex.Entry file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public String name()
+        {
+            return file.name;
+        }
+
+        @Override
+        public long size()
+        {
+            return file.size;
+        }
+
+        @Override
+        public IntegrityIndex.Entry checksums()
+        {
+            return checksums.get(file.path, file.size, file.modified);
+        }
+
+        @Override
+        public IntegrityIndex.Entry computeChecksums() throws IOException
+        {
+            return checksums.compute(file.path);
+        }
+
+        @Override
+        public void checksummed(IntegrityIndex.Checksum checksum)
+        {
+            // Only a complete read of an unchanged file gives its checksums
+            if (checksum.size() == file.size)
+            {
+                checksums.put(file.path, checksum.finish(file.modified));
+            }
+        }
+
+        @Override
+        public long netasciiSize() throws IOException
+        {
+            return file.netasciiSize();
+        }
+
+        @Override
+        public byte[] variant(String kind) throws IOException
+        {
+            if (file.size > MAX_VARIANT_SOURCE)
+                return null;
+
+            VariantCache.Transform transform;
+            if (kind.equals(NETASCII))
+            {
+                transform = Netascii::encode;
+            }
+            else if (Compressor.isIncompressible(file.path))
+            {
+                // Already compressed file types aren't even tried
+                return null;
+            }
+            else
+            {
+                transform = f -> Compressor.compress(f, kind);
+            }
+
+            IntegrityIndex.Entry sums = checksums();
+            if (sums == null)
+                sums = computeChecksums();
+            return variants.get(file.path, kind, sums.sha256, transform);
+        }
+
+        @Override
+        public BlockSource open(long offset) throws IOException
+        {
+            if (file.size > MAX_VARIANT_SOURCE)
+            {
+                synchronized (sharedRings)
+                {
+                    SharedReadRing ring = sharedRings.get(file);
+                    if (ring == null)
+                    {
+                        ring = SharedReadRing.create(file, SHARED_RING_SIZE, aheadBlocks, budget,
+                                FileSystemBackend.this::closeRing);
+                    }
+                    if (ring != null)
+                    {
+                        sharedRings.put(file, ring);
+                        return ring.open(offset);
+                    }
+                }
+            }
+
+            // Small files, and large ones if the read-ahead budget is short for a ring
+            return new ReadAheadSource(file.acquire(), file.size, offset, aheadBlocks, budget, file::release);
+        }
+    }
+
+    /**
+     * @param index index of the read folder
+     * @param checksums checksums of the files in the read folder
+     * @param aheadBlocks number of 512-byte blocks read ahead of a transfer
+     * @param budget shared read-ahead budget, one permit per ReadAheadSource.READ_SIZE buffer
+     */
+    public FileSystemBackend(ReadIndex index, IntegrityIndex checksums, int aheadBlocks, Semaphore budget)
+    {
+        this.index = index;
+        this.checksums = checksums;
+        this.aheadBlocks = aheadBlocks;
+        this.budget = budget;
+    }
+
+    /**
+     * Frees a shared ring once its last transfer has ended, unless a new one has joined it in the meantime
+     * @param ring the idle ring
+     */
+    private void closeRing(SharedReadRing ring)
+    {
+        synchronized (sharedRings)
+        {
+            if (ring.isIdle() && sharedRings.remove(ring.file, ring))
+            {
+                ring.free();
+            }
+        }
+    }
+
+    @Override
+    public Entry lookup(String name)
+    {
+        ReadIndex.Entry file = index.lookup(name);
+        return file == null ? null : new FileEntry(file);
+    }
+
+    @Override
+    public Collection<Entry> entries()
+    {
+        List<Entry> entries = new ArrayList<>();
+        for (ReadIndex.Entry file : index.entries())
+        {
+            entries.add(new FileEntry(file));
+        }
+        return entries;
+    }
+
+    @Override
+    public int size()
+    {
+        return index.size();
+    }
+
+    @Override
+    public void putStats(Map<String, String> stats)
+    {
+        synchronized (sharedRings)
+        {
+            stats.put("rings.active", Integer.toString(sharedRings.size()));
+        }
+        stats.put("rings.chunkReads", Long.toString(SharedReadRing.chunkReads()));
+        stats.put("rings.fallbacks", Long.toString(SharedReadRing.fallbacks()));
+    }
+
+    @Override
+    public void close()
+    {
+        // The read index lives as long as the server, only the pending checksums have to be written
+        checksums.flush();
+    }
+}
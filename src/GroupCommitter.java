@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Makes completed uploads durable in batches. Instead of every transfer forcing its own file to disk, transfers
+ * submit the files and folders they changed and wait; a single flusher thread collects the submissions into a
+ * batch, forces the data of all files and then all folders (so new directory entries survive as well), and
+ * releases the whole batch at once. A file or folder named by many submissions is forced only once, and the
+ * forces of a batch run in parallel so the device can serve them together.
+ *
+ * A folder that can't be forced fails every submission that named it, just like a file. Durable writes thus need
+ * a platform that can open and force folders.
+ *
+ * A batch is flushed when it's full, or when its first submission has waited for the configured delay, so a
+ * lone upload isn't held back for long. Batches also form on their own while the previous one is being flushed.
+ */
+public class GroupCommitter
+{
+    private static class Request
+    {
+        final Collection<Path> files;
+        final Collection<Path> folders;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Request(Collection<Path> files, Collection<Path> folders)
+        {
+            this.files = files;
+            this.folders = folders;
+        }
+    }
+
+    private static final int FORCE_THREADS = 8; // Files or folders of a batch forced at the same time
+
+    private final ServerConfig config;
+    private final ExecutorService forcers = Executors.newFixedThreadPool(FORCE_THREADS, task ->
+    {
+        Thread thread = new Thread(task, "group-committer-force");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+
+    // Counters reported through the admin channel
+    private final AtomicLong batches = new AtomicLong(0);
+    private final AtomicLong requests = new AtomicLong(0);
+
+    /**
+     * Starts the flusher thread
+     * @param config configuration holding the batch size and delay, read again for every batch
+     */
+    public GroupCommitter(ServerConfig config)
+    {
+        this.config = config;
+
+        Thread thread = new Thread(this::flushLoop, "group-committer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queues files and folders for the next batch. The folders are forced after the files of the batch.
+     * @param files files whose data has to be made durable
+     * @param folders folders whose entries have to be made durable, e.g. after a file was linked or moved into one
+     * @return completed once everything is on disk, or exceptionally if forcing a file or folder failed
+     */
+    public CompletableFuture<Void> submit(Collection<Path> files, Collection<Path> folders)
+    {
+        Request request = new Request(files, folders);
+        queue.add(request);
+        return request.done;
+    }
+
+    /**
+     * @return number of batches flushed so far
+     */
+    public long batches()
+    {
+        return batches.get();
+    }
+
+    /**
+     * @return number of submissions flushed so far
+     */
+    public long requests()
+    {
+        return requests.get();
+    }
+
+    private void flushLoop()
+    {
+        List<Request> batch = new ArrayList<>();
+
+        while (true)
+        {
+            try
+            {
+                batch.add(queue.take());
+
+                // Wait for more submissions until the batch is full or the first one has waited long enough
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(config.groupCommitDelay);
+                while (batch.size() < config.groupCommitBatch)
+                {
+                    Request next = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null)
+                        break;
+                    batch.add(next);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+
+            flush(batch);
+            batches.incrementAndGet();
+            requests.addAndGet(batch.size());
+            batch.clear();
+        }
+    }
+
+    /**
+     * Forces the data of every file in the batch, then every folder, and releases the submissions
+     * @param batch submissions to flush
+     */
+    private void flush(List<Request> batch)
+    {
+        Set<Path> files = new LinkedHashSet<>();
+        Set<Path> folders = new LinkedHashSet<>();
+
+        for (Request request : batch)
+        {
+            for (Path file : request.files)
+            {
+                files.add(file.toAbsolutePath());
+            }
+            for (Path folder : request.folders)
+            {
+                folders.add(folder.toAbsolutePath());
+            }
+        }
+
+        Map<Path, IOException> failures = new HashMap<>();
+        forceAll(files, failures);
+        forceAll(folders, failures);
+
+        for (Request request : batch)
+        {
+            IOException failure = null;
+            for (Path path : request.files)
+            {
+                if (failure == null)
+                    failure = failures.get(path.toAbsolutePath());
+            }
+            for (Path path : request.folders)
+            {
+                if (failure == null)
+                    failure = failures.get(path.toAbsolutePath());
+            }
+
+            if (failure != null)
+                request.done.completeExceptionally(failure);
+            else
+                request.done.complete(null);
+        }
+    }
+
+    /**
+     * Forces files or folders in parallel and waits for all of them
+     * @param paths files or folders to force
+     * @param failures receives the paths that couldn't be forced
+     */
+    private void forceAll(Collection<Path> paths, Map<Path, IOException> failures)
+    {
+        Map<Path, Future<?>> forces = new LinkedHashMap<>();
+        for (Path path : paths)
+        {
+            forces.put(path, forcers.submit(() ->
+            {
+                try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+                {
+                    channel.force(true);
+                }
+                return null;
+            }));
+        }
+
+        // Not interruptible, a batch is always released
+        boolean interrupted = false;
+        for (Map.Entry<Path, Future<?>> force : forces.entrySet())
+        {
+            while (true)
+            {
+                try
+                {
+                    force.getValue().get();
+                    break;
+                }
+                catch (InterruptedException e)
+                {
+                    interrupted = true;
+                }
+                catch (ExecutionException e)
+                {
+                    Throwable cause = e.getCause();
+                    failures.put(force.getKey(),
+                            cause instanceof IOException ? (IOException) cause : new IOException(cause));
+                    break;
+                }
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+}
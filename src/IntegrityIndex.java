@@ -0,0 +1,383 @@
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32C;
+
+/**
+ * Keeps SHA-256 and CRC32C checksums of the files in a directory, in a compact index file stored next to the
+ * directory (e.g. "TFTP/read.idx" for "TFTP/read/").
+ * An entry is only valid as long as the size and modification time of the file are unchanged, which makes the
+ * entry usable as a validation key for anything cached from the file.
+ * Changes are written to the index file in the background, at most once per SAVE_DELAY_MS, from a snapshot taken
+ * under the lock, so lookups never wait for the disk. flush() writes pending changes right away, e.g. at shutdown.
+ */
+public class IntegrityIndex
+{
+    private static final int MAGIC = 0x54494458; // "TIDX"
+    private static final int VERSION = 1;
+    private static final int SHA256_LENGTH = 32;
+    private static final int SAVE_DELAY_MS = 1000; // Changes made within this time are written together
+
+    // Writes the index files of all indexes in the background
+    private static final ScheduledExecutorService SAVER = Executors.newSingleThreadScheduledExecutor(task ->
+    {
+        Thread thread = new Thread(task, "index-saver");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path directory;
+    private final Path indexFile;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private final Map<String, String> namesBySha256 = new HashMap<>();
+    private boolean dirty = false; // Changed since the last snapshot was written
+    private boolean saveScheduled = false;
+    private final Object saveLock = new Object(); // Held while the index file is written
+
+    /**
+     * Checksums of a single file, together with the size and modification time they were computed for
+     */
+    public static class Entry
+    {
+        public final long size;
+        public final long modified;
+        public final int crc32c;
+        public final byte[] sha256;
+
+        public Entry(long size, long modified, int crc32c, byte[] sha256)
+        {
+            this.size = size;
+            this.modified = modified;
+            this.crc32c = crc32c;
+            this.sha256 = sha256;
+        }
+
+        /**
+         * @return the SHA-256 checksum as a lower case hex-string
+         */
+        public String sha256Hex()
+        {
+            return toHex(sha256);
+        }
+
+        /**
+         * @return the CRC32C checksum as a hex-string
+         */
+        public String crc32cHex()
+        {
+            return String.format("%08x", crc32c);
+        }
+    }
+
+    /**
+     * Computes both checksums incrementally as blocks flow through a transfer
+     */
+    public static class Checksum
+    {
+        private final CRC32C crc = new CRC32C();
+        private final MessageDigest sha;
+        private long size = 0;
+
+        public Checksum()
+        {
+            try
+            {
+                sha = MessageDigest.getInstance("SHA-256");
+            }
+            catch (NoSuchAlgorithmException e)
+            {
+                // Every Java platform is required to support SHA-256
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * Adds a block of data to the checksums
+         * @param buf buffer holding the data
+         * @param offset start of the data in buf
+         * @param length number of bytes
+         */
+        public void update(byte[] buf, int offset, int length)
+        {
+            crc.update(buf, offset, length);
+            sha.update(buf, offset, length);
+            size += length;
+        }
+
+        /**
+         * @return number of bytes added so far
+         */
+        public long size()
+        {
+            return size;
+        }
+
+        /**
+         * Completes the checksums. The checksum can't be updated afterwards.
+         * @param modified modification time of the file the data was stored in
+         * @return index entry for the data
+         */
+        public Entry finish(long modified)
+        {
+            return new Entry(size, modified, (int) crc.getValue(), sha.digest());
+        }
+    }
+
+    /**
+     * Creates the index for a directory and loads the index file, if there is one
+     * @param directory directory holding the indexed files
+     */
+    public IntegrityIndex(String directory)
+    {
+        this.directory = Paths.get(directory).normalize();
+        this.indexFile = this.directory.resolveSibling(this.directory.getFileName() + ".idx");
+        load();
+    }
+
+    /**
+     * Translates a file in the indexed directory to the name used in the index
+     * @param file path to the file
+     * @return name relative to the indexed directory
+     */
+    public String nameOf(Path file)
+    {
+        return directory.relativize(file.normalize()).toString();
+    }
+
+    /**
+     * Returns the checksums of a file, if they are still valid
+     * @param file path to the file
+     * @return the entry, null if the file isn't indexed or has changed since it was indexed
+     * @throws IOException if the file can't be examined
+     */
+    public Entry get(Path file) throws IOException
+    {
+        return get(file, Files.size(file), Files.getLastModifiedTime(file).toMillis());
+    }
+
+    /**
+     * Returns the checksums of a file, if they match the given size and modification time
+     * @param file path to the file
+     * @param size current size of the file
+     * @param modified current modification time of the file
+     * @return the entry, null if the file isn't indexed or has changed since it was indexed
+     */
+    public synchronized Entry get(Path file, long size, long modified)
+    {
+        Entry entry = entries.get(nameOf(file));
+        if (entry == null || entry.size != size || entry.modified != modified)
+        {
+            return null;
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the checksums of a file, computing and storing them if they are missing or outdated
+     * @param file path to the file
+     * @return up to date entry for the file
+     * @throws IOException if the file can't be read
+     */
+    public Entry compute(Path file) throws IOException
+    {
+        Entry entry = get(file);
+        if (entry != null)
+        {
+            return entry;
+        }
+
+        long modified = Files.getLastModifiedTime(file).toMillis();
+        Checksum checksum = new Checksum();
+        byte[] buf = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(file))
+        {
+            int read;
+            while ((read = in.read(buf)) > 0)
+            {
+                checksum.update(buf, 0, read);
+            }
+        }
+
+        entry = checksum.finish(modified);
+        put(file, entry);
+        return entry;
+    }
+
+    /**
+     * Stores the checksums of a file, the index file is written shortly after
+     * @param file path to the file
+     * @param entry checksums of the file
+     */
+    public synchronized void put(Path file, Entry entry)
+    {
+        String name = nameOf(file);
+        Entry old = entries.put(name, entry);
+        if (old != null)
+        {
+            namesBySha256.remove(old.sha256Hex(), name);
+        }
+        namesBySha256.put(entry.sha256Hex(), name);
+
+        dirty = true;
+        if (!saveScheduled)
+        {
+            saveScheduled = true;
+            SAVER.schedule(this::save, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Writes pending changes to the index file now, instead of waiting for the background save
+     */
+    public void flush()
+    {
+        save();
+    }
+
+    /**
+     * Finds an indexed file with the given content, used to skip uploads of files that are already stored
+     * @param sha256Hex SHA-256 checksum of the content, as a hex-string
+     * @return path to a file with that content, null if there is no such (unchanged) file
+     * @throws IOException if the file can't be examined
+     */
+    public Path findBySha256(String sha256Hex) throws IOException
+    {
+        String name;
+        synchronized (this)
+        {
+            name = namesBySha256.get(sha256Hex.toLowerCase());
+        }
+        if (name == null)
+        {
+            return null;
+        }
+
+        Path file = directory.resolve(name);
+        return Files.exists(file) && get(file) != null ? file : null;
+    }
+
+    /**
+     * Loads the index file. A missing or unreadable index is simply rebuilt as files are transferred.
+     */
+    private void load()
+    {
+        if (!Files.exists(indexFile))
+        {
+            return;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile))))
+        {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+            {
+                System.out.println("Ignoring index file with unknown format: " + indexFile);
+                return;
+            }
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++)
+            {
+                String name = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int crc32c = in.readInt();
+                byte[] sha256 = new byte[SHA256_LENGTH];
+                in.readFully(sha256);
+
+                Entry entry = new Entry(size, modified, crc32c, sha256);
+                entries.put(name, entry);
+                namesBySha256.put(entry.sha256Hex(), name);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read index file " + indexFile + ": " + e.getMessage());
+            entries.clear();
+            namesBySha256.clear();
+        }
+    }
+
+    /**
+     * Writes a snapshot of the index to a temporary file and moves it into place, so a crash never leaves a broken
+     * index. Does nothing if there are no changes since the last snapshot.
+     */
+    private void save()
+    {
+        synchronized (saveLock)
+        {
+            Map<String, Entry> snapshot;
+            synchronized (this)
+            {
+                saveScheduled = false;
+                if (!dirty)
+                    return;
+                dirty = false;
+                snapshot = new HashMap<>(entries);
+            }
+
+            if (!write(snapshot))
+            {
+                // Tried again with the next change or flush
+                synchronized (this)
+                {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param snapshot entries to write
+     * @return true if the index file was written
+     */
+    private boolean write(Map<String, Entry> snapshot)
+    {
+        Path temp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+
+        try
+        {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp))))
+            {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(snapshot.size());
+
+                for (Map.Entry<String, Entry> e : snapshot.entrySet())
+                {
+                    out.writeUTF(e.getKey());
+                    out.writeLong(e.getValue().size);
+                    out.writeLong(e.getValue().modified);
+                    out.writeInt(e.getValue().crc32c);
+                    out.write(e.getValue().sha256);
+                }
+            }
+            Files.move(temp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return true;
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not write index file " + indexFile + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * @param bytes bytes to convert
+     * @return lower case hex-string
+     */
+    private static String toHex(byte[] bytes)
+    {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+        {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,193 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Transcoding between local text files (lines ending with LF) and netascii (RFC 764), where lines end with
+ * CR LF and a bare CR is sent as CR NUL. Both directions work block by block: a sequence split over two blocks
+ * is carried over to the next block, so files never have to be held in memory as a whole.
+ */
+public class Netascii
+{
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+    private static final byte NUL = 0;
+
+    /**
+     * Transcodes a whole file to netascii, used for cached variants of small files
+     * @param file file to transcode
+     * @return the netascii contents
+     * @throws IOException if the file can't be read
+     */
+    public static byte[] encode(Path file) throws IOException
+    {
+        byte[] raw = Files.readAllBytes(file);
+
+        int size = raw.length;
+        for (byte b : raw)
+        {
+            if (b == CR || b == LF)
+                size++;
+        }
+
+        byte[] encoded = new byte[size];
+        int n = 0;
+        for (byte b : raw)
+        {
+            if (b == LF)
+            {
+                encoded[n++] = CR;
+                encoded[n++] = LF;
+            }
+            else if (b == CR)
+            {
+                encoded[n++] = CR;
+                encoded[n++] = NUL;
+            }
+            else
+            {
+                encoded[n++] = b;
+            }
+        }
+        return encoded;
+    }
+
+    /**
+     * Transcodes the blocks of another source to netascii while they are sent
+     */
+    public static class Source implements BlockSource
+    {
+        private final BlockSource in;
+        private final byte[] raw = new byte[512];
+        private int rawPosition = 0;
+        private int rawLength = 0;
+        private boolean endOfInput = false;
+        private int pending = -1; // Second byte of a pair that didn't fit into the previous block
+
+        /**
+         * @param in source of the local file contents
+         */
+        public Source(BlockSource in)
+        {
+            this.in = in;
+        }
+
+        @Override
+        public int nextBlock(byte[] buf, int offset, int length) throws IOException
+        {
+            int n = 0;
+
+            while (n < length)
+            {
+                if (pending >= 0)
+                {
+                    buf[offset + n++] = (byte) pending;
+                    pending = -1;
+                    continue;
+                }
+
+                // Refill from the underlying source
+                if (rawPosition == rawLength)
+                {
+                    if (endOfInput)
+                        break;
+
+                    rawLength = in.nextBlock(raw, 0, raw.length);
+                    rawPosition = 0;
+                    endOfInput = rawLength < raw.length;
+                    continue;
+                }
+
+                byte b = raw[rawPosition++];
+                if (b == LF || b == CR)
+                {
+                    buf[offset + n++] = CR;
+                    pending = b == LF ? LF : NUL;
+                }
+                else
+                {
+                    buf[offset + n++] = b;
+                }
+            }
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Transcodes received netascii blocks back to a local text file
+     */
+    public static class Decoder implements ReassemblyWindow.BlockWriter
+    {
+        private final ReassemblyWindow.BlockWriter out;
+        private final byte[] decoded = new byte[512];
+        private boolean pendingCR = false; // A block ended with CR, its meaning depends on the next byte
+
+        /**
+         * @param out receiver of the decoded data
+         */
+        public Decoder(ReassemblyWindow.BlockWriter out)
+        {
+            this.out = out;
+        }
+
+        @Override
+        public void write(byte[] buf, int offset, int length) throws IOException
+        {
+            int n = 0;
+
+            for (int i = offset; i < offset + length; i++)
+            {
+                byte b = buf[i];
+
+                if (pendingCR)
+                {
+                    pendingCR = false;
+                    if (b == LF)
+                    {
+                        decoded[n++] = LF;
+                        continue;
+                    }
+
+                    // CR NUL is a bare CR, a CR followed by anything else is kept as it is
+                    decoded[n++] = CR;
+                    if (b == NUL)
+                        continue;
+                }
+
+                if (b == CR)
+                    pendingCR = true;
+                else
+                    decoded[n++] = b;
+
+                // Every input byte produces at most two output bytes, flush before running out of room
+                if (n >= decoded.length - 1)
+                {
+                    out.write(decoded, 0, n);
+                    n = 0;
+                }
+            }
+
+            if (n > 0)
+                out.write(decoded, 0, n);
+        }
+
+        /**
+         * Writes a CR left at the very end of the data
+         * @throws IOException if the write fails
+         */
+        public void finish() throws IOException
+        {
+            if (pendingCR)
+            {
+                pendingCR = false;
+                out.write(new byte[]{CR}, 0, 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,266 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serves read requests from a packed archive of the read folder, made by the ArchivePacker. The archive is mapped
+ * into memory once, a request is answered by a binary search in its sorted index and a slice of the mapping, so
+ * serving a file takes no system calls at all. The archive is read-only, repack it and restart the server to
+ * change its contents.
+ *
+ * Layout, all numbers big-endian:
+ *   header   magic "TFTPPACK", int version, int file count, long index offset, long names offset
+ *   data     the contents of all files, back to back
+ *   names    the UTF-8 names of all files, back to back
+ *   index    one record per file, sorted by the bytes of the name:
+ *            int name offset (in names), int name length, long data offset, long size, long modified,
+ *            int CRC32C, int reserved, 32 bytes SHA-256
+ *
+ * The whole archive is one mapping, so it can't be larger than 2GB.
+ */
+public class PackedArchiveBackend implements StorageBackend
+{
+    public static final byte[] MAGIC = "TFTPPACK".getBytes(StandardCharsets.US_ASCII);
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 32;
+    public static final int RECORD_SIZE = 72;
+
+    private final MappedByteBuffer map;
+    private final int count;
+    private final int indexOffset;
+    private final int namesOffset;
+
+    /**
+     * A file in the archive, read from its index record when asked for
+     */
+    private class ArchiveEntry implements Entry
+    {
+        private final int record; // Position of the index record in the mapping
+
+        ArchiveEntry(int record)
+        {
+            this.record = record;
+        }
+
+        @Override
+        public String name()
+        {
+            byte[] name = new byte[map.getInt(record + 4)];
+            map.get(namesOffset + map.getInt(record), name);
+            return new String(name, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public long size()
+        {
+            return map.getLong(record + 16);
+        }
+
+        @Override
+        public IntegrityIndex.Entry checksums()
+        {
+            byte[] sha256 = new byte[32];
+            map.get(record + 40, sha256);
+            return new IntegrityIndex.Entry(size(), map.getLong(record + 24), map.getInt(record + 32), sha256);
+        }
+
+        @Override
+        public IntegrityIndex.Entry computeChecksums()
+        {
+            return checksums();
+        }
+
+        @Override
+        public void checksummed(IntegrityIndex.Checksum checksum)
+        {
+            // The checksums are stored in the archive already
+        }
+
+        @Override
+        public long netasciiSize()
+        {
+            // Every CR and LF is sent as two bytes
+            ByteBuffer data = data();
+            long size = data.limit();
+            for (int i = 0; i < data.limit(); i++)
+            {
+                byte b = data.get(i);
+                if (b == '\n' || b == '\r')
+                    size++;
+            }
+            return size;
+        }
+
+        @Override
+        public byte[] variant(String kind)
+        {
+            // Files are served straight from the mapping, no variants are kept
+            return null;
+        }
+
+        @Override
+        public BlockSource open(long offset)
+        {
+            return new ByteBufferSource(data(), offset);
+        }
+
+        /**
+         * @return the contents of the file, a slice of the mapping
+         */
+        private ByteBuffer data()
+        {
+            return map.slice((int) map.getLong(record + 8), (int) size());
+        }
+    }
+
+    /**
+     * Maps an archive and checks its header
+     * @param archive path to the archive
+     * @throws IOException if the archive can't be read or isn't a valid archive
+     */
+    public PackedArchiveBackend(Path archive) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ))
+        {
+            if (channel.size() > Integer.MAX_VALUE)
+            {
+                throw new IOException("Archive is larger than 2GB: " + archive);
+            }
+            // The mapping stays valid once the channel is closed
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+
+        byte[] magic = new byte[MAGIC.length];
+        if (map.limit() >= HEADER_SIZE)
+            map.get(0, magic);
+        if (!Arrays.equals(magic, MAGIC))
+        {
+            throw new IOException("Not a packed archive: " + archive);
+        }
+        if (map.getInt(8) != VERSION)
+        {
+            throw new IOException("Unsupported archive version " + map.getInt(8) + ": " + archive);
+        }
+
+        count = map.getInt(12);
+        long index = map.getLong(16);
+        long names = map.getLong(24);
+        if (count < 0 || index < HEADER_SIZE || names < HEADER_SIZE || names > index
+                || index + (long) count * RECORD_SIZE != map.limit())
+        {
+            throw new IOException("Corrupt archive index: " + archive);
+        }
+        indexOffset = (int) index;
+        namesOffset = (int) names;
+
+        // Checked once here, so serving a file can trust the records
+        for (int i = 0; i < count; i++)
+        {
+            int record = indexOffset + i * RECORD_SIZE;
+            long nameEnd = (long) namesOffset + map.getInt(record) + map.getInt(record + 4);
+            long dataEnd = map.getLong(record + 8) + map.getLong(record + 16);
+            if (map.getInt(record) < 0 || map.getInt(record + 4) < 0 || nameEnd > indexOffset
+                    || map.getLong(record + 8) < HEADER_SIZE || map.getLong(record + 16) < 0 || dataEnd > namesOffset)
+            {
+                throw new IOException("Corrupt archive index: " + archive);
+            }
+        }
+    }
+
+    @Override
+    public Entry lookup(String name)
+    {
+        if (!ReadIndex.isSafeName(name))
+        {
+            return null;
+        }
+
+        Entry entry = find(name.getBytes(StandardCharsets.UTF_8));
+        if (entry == null)
+        {
+            // Names like "./a" or "a//b" are only normalized on a miss, the common case is a plain name
+            entry = find(Paths.get(name).normalize().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return entry;
+    }
+
+    /**
+     * Binary search of the index, comparing the name with the names in the mapping byte by byte
+     * @param name UTF-8 bytes of the name
+     * @return the entry, null if there is no such file
+     */
+    private Entry find(byte[] name)
+    {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high)
+        {
+            int middle = (low + high) >>> 1;
+            int record = indexOffset + middle * RECORD_SIZE;
+            int cmp = compareName(record, name);
+            if (cmp < 0)
+                low = middle + 1;
+            else if (cmp > 0)
+                high = middle - 1;
+            else
+                return new ArchiveEntry(record);
+        }
+        return null;
+    }
+
+    /**
+     * @return negative, zero or positive as the name of the record sorts before, equal to or after name
+     */
+    private int compareName(int record, byte[] name)
+    {
+        int start = namesOffset + map.getInt(record);
+        int length = map.getInt(record + 4);
+        int n = Math.min(length, name.length);
+        for (int i = 0; i < n; i++)
+        {
+            int cmp = Integer.compare(map.get(start + i) & 0xff, name[i] & 0xff);
+            if (cmp != 0)
+                return cmp;
+        }
+        return Integer.compare(length, name.length);
+    }
+
+    @Override
+    public Collection<Entry> entries()
+    {
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+        {
+            entries.add(new ArchiveEntry(indexOffset + i * RECORD_SIZE));
+        }
+        return entries;
+    }
+
+    @Override
+    public int size()
+    {
+        return count;
+    }
+
+    @Override
+    public void putStats(Map<String, String> stats)
+    {
+        stats.put("archive.bytes", Integer.toString(map.limit()));
+    }
+
+    @Override
+    public void close()
+    {
+        // The mapping is released once it's no longer referenced
+    }
+}
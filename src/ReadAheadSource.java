@@ -0,0 +1,194 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Reads a file ahead of the transfer, so the next blocks are already in memory when the ACK for the current
+ * block arrives. The file is read in chunks of READ_SIZE bytes into a ring of buffers, and a new read is issued
+ * as soon as a buffer has been used up. Buffers are taken from a budget shared by all transfers, if the budget
+ * is used up the transfer falls back to reading one chunk at a time.
+ */
+public class ReadAheadSource implements BlockSource
+{
+    public static final int READ_SIZE = 8 * 1024; // Size of each read, and of each buffer in the budget
+
+    private final AsynchronousFileChannel channel;
+    private final Runnable onClose; // Releases the channel when the transfer is done
+    private final long size;
+    private final Semaphore budget;
+    private final int budgetPermits; // Buffers taken from the budget, returned on close
+
+    private final ByteBuffer[] buffers;
+    private final Future<Integer>[] reads;
+    private final long[] positions; // File position each buffer is read from
+    private final boolean[] filling; // True while a buffer is being read into, false while it's copied from
+
+    private long nextReadPosition; // Position of the next chunk to request
+    private int current = 0; // Buffer the next block is copied from
+    private boolean closed = false;
+
+    /**
+     * Opens a file and starts reading ahead
+     * @param file file to read
+     * @param offset position to start at
+     * @param aheadBlocks number of 512-byte blocks to keep ready ahead of the transfer
+     * @param budget shared budget, one permit per READ_SIZE buffer
+     * @throws IOException if the file can't be opened
+     */
+    public ReadAheadSource(Path file, long offset, int aheadBlocks, Semaphore budget) throws IOException
+    {
+        this(AsynchronousFileChannel.open(file, StandardOpenOption.READ), -1, offset, aheadBlocks, budget, null);
+    }
+
+    /**
+     * Starts reading ahead from a channel that may be shared with other transfers
+     * @param channel channel to read from
+     * @param size size of the file, -1 to ask the channel
+     * @param offset position to start at
+     * @param aheadBlocks number of 512-byte blocks to keep ready ahead of the transfer
+     * @param budget shared budget, one permit per READ_SIZE buffer
+     * @param onClose called instead of closing the channel, null to close the channel
+     * @throws IOException if the size of the file can't be determined
+     */
+    @SuppressWarnings("unchecked")
+    public ReadAheadSource(AsynchronousFileChannel channel, long size, long offset, int aheadBlocks, Semaphore budget,
+                           Runnable onClose) throws IOException
+    {
+        this.channel = channel;
+        this.onClose = onClose;
+        this.size = size >= 0 ? size : channel.size();
+        this.budget = budget;
+        this.nextReadPosition = offset;
+
+        // Ask for as many buffers as wanted (at least two for double buffering), settle for fewer if needed
+        int wanted = Math.max(2, (aheadBlocks * 512 + READ_SIZE - 1) / READ_SIZE);
+        int granted = wanted;
+        while (granted > 0 && !budget.tryAcquire(granted))
+        {
+            granted--;
+        }
+        this.budgetPermits = granted;
+
+        int count = Math.max(1, granted);
+        buffers = new ByteBuffer[count];
+        reads = (Future<Integer>[]) new Future<?>[count];
+        positions = new long[count];
+        filling = new boolean[count];
+
+        for (int i = 0; i < count; i++)
+        {
+            buffers[i] = ByteBuffer.allocate(READ_SIZE);
+            startRead(i);
+        }
+    }
+
+    @Override
+    public int nextBlock(byte[] buf, int offset, int length) throws IOException
+    {
+        int copied = 0;
+
+        while (copied < length)
+        {
+            ByteBuffer buffer = awaitRead(current);
+
+            // Out of data
+            if (!buffer.hasRemaining())
+            {
+                break;
+            }
+
+            int n = Math.min(length - copied, buffer.remaining());
+            buffer.get(buf, offset + copied, n);
+            copied += n;
+
+            // Buffer used up, refill it with the next chunk and move on to the next buffer
+            if (!buffer.hasRemaining())
+            {
+                startRead(current);
+                current = (current + 1) % buffers.length;
+            }
+        }
+
+        return copied;
+    }
+
+    /**
+     * Issues a read of the next chunk into a buffer
+     * @param i index of the buffer
+     */
+    private void startRead(int i)
+    {
+        ByteBuffer buffer = buffers[i];
+        buffer.clear();
+        positions[i] = nextReadPosition;
+        filling[i] = true;
+
+        int chunk = (int) Math.min(READ_SIZE, Math.max(0, size - nextReadPosition));
+        buffer.limit(chunk);
+        nextReadPosition += chunk;
+
+        reads[i] = chunk > 0 ? channel.read(buffer, positions[i]) : null;
+    }
+
+    /**
+     * Waits until a buffer is completely filled and prepares it for copying
+     * @param i index of the buffer
+     * @return the buffer, empty if the end of the file has been reached
+     * @throws IOException if the read failed
+     */
+    private ByteBuffer awaitRead(int i) throws IOException
+    {
+        ByteBuffer buffer = buffers[i];
+
+        try
+        {
+            while (reads[i] != null)
+            {
+                int read = reads[i].get();
+                reads[i] = null;
+
+                // Reads may complete partially, continue until the chunk is complete or the file has shrunk
+                if (read > 0 && buffer.hasRemaining())
+                {
+                    reads[i] = channel.read(buffer, positions[i] + buffer.position());
+                }
+            }
+        }
+        catch (InterruptedException e)
+        {
+            throw new InterruptedIOException("Interrupted while reading ahead");
+        }
+        catch (ExecutionException e)
+        {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+
+        // Turn the buffer from filling to copying once the chunk is complete
+        if (filling[i])
+        {
+            buffer.flip();
+            filling[i] = false;
+        }
+        return buffer;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (!closed)
+        {
+            closed = true;
+            budget.release(budgetPermits);
+            if (onClose != null)
+                onClose.run();
+            else
+                channel.close();
+        }
+    }
+}
@@ -0,0 +1,368 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * In-memory index of the files in the read folder, built at startup and kept up to date by a WatchService.
+ * Read requests are answered from the index, so unknown names and attempts to escape the folder are rejected
+ * without touching the disk, and the size of a file is known before it's opened.
+ */
+public class ReadIndex
+{
+    // Channels kept open between transfers, above this they're closed once the last transfer is done
+    private static final int MAX_OPEN_HANDLES = 256;
+
+    private final Path directory;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<WatchKey, Path> watchedDirs = new ConcurrentHashMap<>();
+    private final AtomicInteger openHandles = new AtomicInteger(0);
+    private final WatchService watcher;
+
+    /**
+     * A file in the index. An entry never changes, a modified file gets a new entry.
+     */
+    public class Entry
+    {
+        public final String name;
+        public final Path path;
+        public final long size;
+        public final long modified;
+
+        // Size of the file transcoded to netascii, computed when first needed
+        private volatile long netasciiSize = -1;
+
+        // Channel shared by all transfers of this version of the file
+        private AsynchronousFileChannel channel;
+        private int users = 0;
+        private boolean retired = false;
+
+        Entry(String name, Path path, long size, long modified)
+        {
+            this.name = name;
+            this.path = path;
+            this.size = size;
+            this.modified = modified;
+        }
+
+        /**
+         * Returns the channel of the file, opening it if needed. Every call must be followed by release().
+         * @return channel for reading the file
+         * @throws IOException if the file can't be opened
+         */
+        public synchronized AsynchronousFileChannel acquire() throws IOException
+        {
+            if (channel == null)
+            {
+                channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+                openHandles.incrementAndGet();
+            }
+            users++;
+            return channel;
+        }
+
+        /**
+         * Releases the channel, closing it if the file has changed or too many channels are open
+         */
+        public synchronized void release()
+        {
+            users--;
+            if (users == 0 && (retired || openHandles.get() > MAX_OPEN_HANDLES))
+            {
+                closeChannel();
+            }
+        }
+
+        /**
+         * Marks the entry as outdated, its channel is closed once no transfer uses it
+         */
+        synchronized void retire()
+        {
+            retired = true;
+            if (users == 0)
+            {
+                closeChannel();
+            }
+        }
+
+        private void closeChannel()
+        {
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException e)
+                {
+                    e.printStackTrace();
+                }
+                channel = null;
+                openHandles.decrementAndGet();
+            }
+        }
+
+        /**
+         * @return size of the file transcoded to netascii
+         * @throws IOException if the file can't be read
+         */
+        public long netasciiSize() throws IOException
+        {
+            if (netasciiSize < 0)
+            {
+                // Every CR and LF is sent as two bytes
+                long count = size;
+                byte[] buf = new byte[64 * 1024];
+                try (InputStream in = Files.newInputStream(path))
+                {
+                    int read;
+                    while ((read = in.read(buf)) > 0)
+                    {
+                        for (int i = 0; i < read; i++)
+                        {
+                            if (buf[i] == '\r' || buf[i] == '\n')
+                                count++;
+                        }
+                    }
+                }
+                netasciiSize = count;
+            }
+            return netasciiSize;
+        }
+    }
+
+    /**
+     * Builds the index and starts watching the folder for changes
+     * @param directory folder to index
+     * @throws IOException if the folder can't be read
+     */
+    public ReadIndex(String directory) throws IOException
+    {
+        this.directory = Paths.get(directory).normalize();
+
+        watcher = this.directory.getFileSystem().newWatchService();
+        scan(this.directory);
+
+        Thread thread = new Thread(this::watch, "read-index-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Checks a requested name without touching the disk. Absolute names and names containing ".." could reach
+     * files outside the folder.
+     * @param name requested name
+     * @return true if the name stays within the folder
+     */
+    public static boolean isSafeName(String name)
+    {
+        if (name.isEmpty() || name.indexOf(0) >= 0 || name.startsWith("/") || name.startsWith("\\")
+                || name.length() > 1 && name.charAt(1) == ':')
+        {
+            return false;
+        }
+
+        for (String part : name.split("[/\\\\]"))
+        {
+            if (part.equals(".."))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a requested file
+     * @param name requested name, relative to the folder
+     * @return the entry, null if there is no such file or the name isn't safe
+     */
+    public Entry lookup(String name)
+    {
+        if (!isSafeName(name))
+        {
+            return null;
+        }
+
+        Entry entry = entries.get(name);
+        if (entry == null)
+        {
+            // Names like "./a" or "a//b" are only normalized on a miss, the common case is a plain name
+            entry = entries.get(Paths.get(name).normalize().toString());
+        }
+        return entry;
+    }
+
+    /**
+     * @return number of files in the index
+     */
+    public int size()
+    {
+        return entries.size();
+    }
+
+    /**
+     * @return the files currently in the index
+     */
+    public Collection<Entry> entries()
+    {
+        return new ArrayList<>(entries.values());
+    }
+
+    /**
+     * Adds a folder and everything below it to the index, and starts watching the folders
+     * @param dir folder to scan
+     */
+    private void scan(Path dir) throws IOException
+    {
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>()
+        {
+            @Override
+            public FileVisitResult preVisitDirectory(Path d, BasicFileAttributes attrs) throws IOException
+            {
+                watchedDirs.put(d.register(watcher, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE), d);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+            {
+                if (attrs.isRegularFile())
+                {
+                    put(file, attrs);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Updates the entry of a single path after a change
+     * @param file changed path
+     */
+    private void refresh(Path file)
+    {
+        try
+        {
+            BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            if (attrs.isDirectory())
+            {
+                scan(file);
+            }
+            else if (attrs.isRegularFile())
+            {
+                put(file, attrs);
+            }
+        }
+        catch (IOException e)
+        {
+            // Deleted (or no longer readable)
+            Entry old = entries.remove(directory.relativize(file).toString());
+            if (old != null)
+            {
+                old.retire();
+            }
+        }
+    }
+
+    private void put(Path file, BasicFileAttributes attrs)
+    {
+        String name = directory.relativize(file).toString();
+        Entry old = entries.get(name);
+        if (old != null && old.size == attrs.size() && old.modified == attrs.lastModifiedTime().toMillis())
+        {
+            return;
+        }
+
+        entries.put(name, new Entry(name, file, attrs.size(), attrs.lastModifiedTime().toMillis()));
+        if (old != null)
+        {
+            old.retire();
+        }
+    }
+
+    /**
+     * Rebuilds the index after events were lost
+     */
+    private void rescan()
+    {
+        try
+        {
+            scan(directory);
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+
+        for (Entry entry : entries.values())
+        {
+            if (!Files.isRegularFile(entry.path))
+            {
+                entries.remove(entry.name);
+                entry.retire();
+            }
+        }
+    }
+
+    /**
+     * Applies changes reported by the WatchService, runs on its own thread
+     */
+    private void watch()
+    {
+        while (true)
+        {
+            WatchKey key;
+            try
+            {
+                key = watcher.take();
+            }
+            catch (InterruptedException | ClosedWatchServiceException e)
+            {
+                return;
+            }
+
+            Path dir = watchedDirs.get(key);
+            for (WatchEvent<?> event : key.pollEvents())
+            {
+                if (event.kind() == OVERFLOW || dir == null)
+                {
+                    rescan();
+                    continue;
+                }
+
+                Path changed = dir.resolve((Path) event.context());
+                if (event.kind() == ENTRY_DELETE)
+                {
+                    // A deleted folder takes everything below it along
+                    String prefix = directory.relativize(changed).toString();
+                    for (Entry entry : entries.values())
+                    {
+                        if (entry.name.equals(prefix) || entry.name.startsWith(prefix + changed.getFileSystem().getSeparator()))
+                        {
+                            entries.remove(entry.name);
+                            entry.retire();
+                        }
+                    }
+                }
+                else
+                {
+                    refresh(changed);
+                }
+            }
+
+            if (!key.reset())
+            {
+                watchedDirs.remove(key);
+            }
+        }
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.IOException;
+
+/**
+ * Reassembles the DATA-blocks of a windowed upload (RFC 7440). Blocks that arrive ahead of the next expected
+ * block are kept in a ring of buffers, with a bitmap telling which slots are filled, and are handed on as soon
+ * as the gap before them is filled. Only blocks within one window of the next expected block are accepted, so
+ * memory use is bounded by the window size.
+ *
+ * Block numbers are tracked as an ever-increasing sequence number, the 16-bit block numbers on the wire are
+ * mapped onto it, so uploads of more than 65535 blocks work as well.
+ */
+public class ReassemblyWindow
+{
+    // Results of offer()
+    public static final int ACCEPTED = 0;
+    public static final int DUPLICATE = 1; // Already received, the sender probably missed our ACK
+    public static final int OUT_OF_WINDOW = 2; // Too far ahead, or after the last block
+
+    /**
+     * Receiver of the reassembled data, in order
+     */
+    public interface BlockWriter
+    {
+        void write(byte[] buf, int offset, int length) throws IOException;
+    }
+
+    private final int capacity;
+    private final int blockSize;
+    private final byte[][] ring;
+    private final int[] lengths;
+    private final long[] received; // Bitmap over the ring slots
+
+    private long next = 1; // Sequence number of the next block to hand on
+    private long last = Long.MAX_VALUE; // Sequence number of the final (short) block, once seen
+
+    /**
+     * @param capacity number of blocks that can be kept, i.e., the window size
+     * @param blockSize size of a full block
+     */
+    public ReassemblyWindow(int capacity, int blockSize)
+    {
+        this.capacity = capacity;
+        this.blockSize = blockSize;
+        this.ring = new byte[capacity][];
+        this.lengths = new int[capacity];
+        this.received = new long[(capacity + 63) / 64];
+    }
+
+    /**
+     * Offers a received block
+     * @param blockNumber 16-bit block number from the DATA-packet
+     * @param buf buffer holding the data
+     * @param offset start of the data in buf
+     * @param length number of data bytes
+     * @return ACCEPTED, DUPLICATE or OUT_OF_WINDOW
+     */
+    public int offer(int blockNumber, byte[] buf, int offset, int length)
+    {
+        // Distance from the next expected block, taking wrap-around of the block number into account
+        int distance = (blockNumber - (int) next) & 0xffff;
+        if (distance >= capacity)
+        {
+            return distance > 0xffff - capacity ? DUPLICATE : OUT_OF_WINDOW;
+        }
+
+        long sequence = next + distance;
+        if (sequence > last)
+        {
+            return OUT_OF_WINDOW;
+        }
+
+        int slot = (int) (sequence % capacity);
+        if (isSet(slot))
+        {
+            return DUPLICATE;
+        }
+
+        if (ring[slot] == null)
+        {
+            ring[slot] = new byte[blockSize];
+        }
+        System.arraycopy(buf, offset, ring[slot], 0, length);
+        lengths[slot] = length;
+        set(slot, true);
+
+        if (length < blockSize)
+        {
+            last = sequence;
+        }
+        return ACCEPTED;
+    }
+
+    /**
+     * Hands on all blocks that are now in order
+     * @param writer receiver of the data
+     * @return number of bytes handed on
+     * @throws IOException if the writer fails
+     */
+    public long drain(BlockWriter writer) throws IOException
+    {
+        long drained = 0;
+        int slot = (int) (next % capacity);
+
+        while (next <= last && isSet(slot))
+        {
+            writer.write(ring[slot], 0, lengths[slot]);
+            drained += lengths[slot];
+            set(slot, false);
+            next++;
+            slot = (int) (next % capacity);
+        }
+        return drained;
+    }
+
+    /**
+     * @return 16-bit block number to acknowledge, i.e., the last block handed on in order
+     */
+    public int ackNumber()
+    {
+        return (int) ((next - 1) & 0xffff);
+    }
+
+    /**
+     * @return number of blocks handed on so far
+     */
+    public long blocksDone()
+    {
+        return next - 1;
+    }
+
+    /**
+     * @return true once the final block has been handed on
+     */
+    public boolean isComplete()
+    {
+        return next > last;
+    }
+
+    private boolean isSet(int slot)
+    {
+        return (received[slot >> 6] & (1L << slot)) != 0;
+    }
+
+    private void set(int slot, boolean value)
+    {
+        if (value)
+            received[slot >> 6] |= 1L << slot;
+        else
+            received[slot >> 6] &= ~(1L << slot);
+    }
+}
@@ -100,7 +100,7 @@ public class RogueClient
      * @return
      * @throws IOException
      */
-    private static DatagramPacket receiveNextPacket(DatagramSocket socket) throws IOException {
+    static DatagramPacket receiveNextPacket(DatagramSocket socket) throws IOException {
 
         byte[] buf = new byte[516];
         DatagramPacket receivePacket = new DatagramPacket(buf, buf.length);
@@ -124,7 +124,7 @@ public class RogueClient
      * @return packet contents, empty string if packet is null.
      * @throws IOException
      */
-    private static String readPacketContents(DatagramPacket packet) throws IOException
+    static String readPacketContents(DatagramPacket packet) throws IOException
     {
         if (packet == null)
         {
@@ -155,7 +155,7 @@ public class RogueClient
      * @param message
      * @throws IOException
      */
-    private static void sendErrorPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int errorCode, String message) throws IOException
+    static void sendErrorPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int errorCode, String message) throws IOException
     {
         byte[] messageData = message.getBytes();
 
@@ -193,7 +193,7 @@ public class RogueClient
      * @param blockNumber block number
      * @throws IOException
      */
-    private static void sendACKPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int blockNumber) throws IOException {
+    static void sendACKPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int blockNumber) throws IOException {
 
         byte[] buf = new byte[4];
 
@@ -202,7 +202,7 @@ public class RogueClient
         buf[1] = OP_ACK;
 
         // Set block number
-        buf[2] = 0;
+        buf[2] = (byte) (blockNumber >> 8);
         buf[3] = (byte) blockNumber;
 
         DatagramPacket sendPacket = new DatagramPacket(buf, buf.length, remoteBindPoint);
@@ -219,27 +219,34 @@ public class RogueClient
      * @param socket
      * @throws IOException
      */
-    private static void sendDataPacket(DatagramSocket socket, SocketAddress remoteBindPoint, String data) throws IOException
+    static void sendDataPacket(DatagramSocket socket, SocketAddress remoteBindPoint, String data) throws IOException
     {
         byte[] testData = data.getBytes();
+        sendDataPacket(socket, remoteBindPoint, 1, testData, testData.length);
+    }
 
-        byte[] buf = new byte[4 + testData.length];
+    /**
+     * Sends a data packet with a given block number to the server
+     *
+     * @param socket
+     * @param blockNumber block number
+     * @param data data to send
+     * @param length number of bytes of data to send
+     * @throws IOException
+     */
+    static void sendDataPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int blockNumber, byte[] data, int length) throws IOException
+    {
+        byte[] buf = new byte[4 + length];
 
         // Set opcode
         buf[0] = 0;
         buf[1] = OP_DAT;
 
         // Set block number
-        buf[2] = 0;
-        buf[3] = 1;
-
-        int indexPointer = 4;
+        buf[2] = (byte) (blockNumber >> 8);
+        buf[3] = (byte) blockNumber;
 
-        // copy Filename to buffer
-        for (int i=0; i < testData.length; i++)
-        {
-            buf[indexPointer++] = testData[i];
-        }
+        System.arraycopy(data, 0, buf, 4, length);
 
         DatagramPacket sendPacket = new DatagramPacket(buf, buf.length, remoteBindPoint);
 
@@ -251,7 +258,7 @@ public class RogueClient
      * @param socket
      * @param fileName
      */
-    private static void sendWriteRequest(DatagramSocket socket, SocketAddress remoteBindPoint, String fileName) throws IOException
+    static void sendWriteRequest(DatagramSocket socket, SocketAddress remoteBindPoint, String fileName) throws IOException
     {
         sendRequestPacket(socket, remoteBindPoint, OP_WRQ, fileName, TEST_MODE);
     }
@@ -262,7 +269,7 @@ public class RogueClient
      * @param fileName
      * @throws IOException
      */
-    private static void sendReadRequest(DatagramSocket socket, SocketAddress remoteBindPoint, String fileName) throws IOException
+    static void sendReadRequest(DatagramSocket socket, SocketAddress remoteBindPoint, String fileName) throws IOException
     {
         sendRequestPacket(socket, remoteBindPoint, OP_RRQ, fileName, TEST_MODE);
     }
@@ -272,7 +279,7 @@ public class RogueClient
      * @param socket
      * @throws IOException
      */
-    private static void sendIllegalOpCodeRequest(DatagramSocket socket, SocketAddress remoteBindPoint, int opCode) throws IOException
+    static void sendIllegalOpCodeRequest(DatagramSocket socket, SocketAddress remoteBindPoint, int opCode) throws IOException
     {
         sendRequestPacket(socket, remoteBindPoint, opCode, TEST_FILE, TEST_MODE);
     }
@@ -285,7 +292,7 @@ public class RogueClient
      * @param mode
      * @throws IOException
      */
-    private static void sendRequestPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int opcode, String filename, String mode) throws IOException {
+    static void sendRequestPacket(DatagramSocket socket, SocketAddress remoteBindPoint, int opcode, String filename, String mode) throws IOException {
 
         byte[] buf = new byte[4 + filename.getBytes().length + mode.getBytes().length];
 
@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+
+/**
+ * Settings of the server, loaded from a properties file at startup. Folders and ports are fixed once the server
+ * runs, the timeout, retry limit, concurrency cap, quota, group commit batching, rate limit and the age of kept
+ * partial uploads can be changed live through the admin channel and are read again by every transfer.
+ */
+public class ServerConfig
+{
+    // Names of the settings in the properties file
+    public static final String PORT = "port";
+    public static final String ADMIN_PORT = "admin.port";
+    public static final String READ_DIR = "read.dir";
+    public static final String READ_ARCHIVE = "read.archive";
+    public static final String WRITE_DIR = "write.dir";
+    public static final String AUDIT_DIR = "audit.dir";
+    public static final String CHUNK_STORE = "chunk.store";
+    public static final String DURABLE_WRITES = "durable.writes";
+    public static final String WARMUP_MANIFEST = "warmup.manifest";
+    public static final String WARMUP_TRANSFERS = "warmup.transfers";
+    public static final String TIMEOUT = "timeout.ms";
+    public static final String RETRIES = "max.retries";
+    public static final String MAX_TRANSFERS = "max.transfers";
+    public static final String WRITE_QUOTA = "write.quota.bytes";
+    public static final String GROUP_COMMIT_BATCH = "group.commit.batch";
+    public static final String GROUP_COMMIT_DELAY = "group.commit.delay.ms";
+    public static final String SOURCE_RATE_LIMIT = "source.rate.limit";
+    public static final String PARTIAL_MAX_AGE = "partial.max.age.s";
+
+    // Settings that can be changed while the server runs
+    private static final String[] LIVE_SETTINGS = {TIMEOUT, RETRIES, MAX_TRANSFERS, WRITE_QUOTA, GROUP_COMMIT_BATCH,
+            GROUP_COMMIT_DELAY, SOURCE_RATE_LIMIT, PARTIAL_MAX_AGE};
+
+    // Fixed at startup
+    public final int port;
+    public final int adminPort; // Loopback port of the admin channel, 0 to disable it
+    public final String readDir;
+    public final String readArchive; // Packed archive read requests are served from instead of readDir, empty for none
+    public final String writeDir;
+    public final String auditDir;
+    public final boolean chunkStore; // Store uploads deduplicated in a ChunkStore instead of as plain files
+    public final boolean durableWrites; // Acknowledge uploads only once they're forced to disk by the GroupCommitter
+    public final String warmupManifest; // File listing the hottest files of the read folder, empty for none
+    public final int warmupTransfers; // Loopback transfers run before the port is opened, 0 to skip the warm-up
+
+    // Changeable at runtime
+    public volatile int waitingLimit; // Specifies how long we should wait for a packet before re-transmitting
+    public volatile int maximumRetries; // Maximum re-transmitting tries
+    public volatile int maxTransfers; // Transfers running at the same time, further requests are refused
+    public volatile long writeFolderSizeLimit; // Total size of the write folder
+    public volatile int groupCommitBatch; // Uploads forced to disk together at most
+    public volatile int groupCommitDelay; // Milliseconds an upload waits for others to join its batch at most
+    public volatile int sourceRateLimit; // Invalid packets answered per second and host on the request port, 0: no limit
+    public volatile int partialMaxAge; // Seconds an interrupted upload is kept for resuming, 0 to keep it forever
+
+    /**
+     * Creates the configuration from a set of properties, missing settings get their default value
+     * @param properties settings
+     * @throws IllegalArgumentException if a setting has an invalid value
+     */
+    public ServerConfig(Properties properties)
+    {
+        port = parseInt(PORT, properties.getProperty(PORT, "4970"), 1);
+        adminPort = parseInt(ADMIN_PORT, properties.getProperty(ADMIN_PORT, "4971"), 0);
+        readDir = directory(properties.getProperty(READ_DIR, "TFTP/read/"));
+        readArchive = properties.getProperty(READ_ARCHIVE, "").trim();
+        writeDir = directory(properties.getProperty(WRITE_DIR, "TFTP/write/"));
+        auditDir = directory(properties.getProperty(AUDIT_DIR, "TFTP/audit/"));
+        chunkStore = Boolean.parseBoolean(properties.getProperty(CHUNK_STORE, "false").trim());
+        durableWrites = Boolean.parseBoolean(properties.getProperty(DURABLE_WRITES, "false").trim());
+        warmupManifest = properties.getProperty(WARMUP_MANIFEST, "").trim();
+        warmupTransfers = parseInt(WARMUP_TRANSFERS, properties.getProperty(WARMUP_TRANSFERS, "0"), 0);
+
+        set(TIMEOUT, properties.getProperty(TIMEOUT, "200"));
+        set(RETRIES, properties.getProperty(RETRIES, "10"));
+        set(MAX_TRANSFERS, properties.getProperty(MAX_TRANSFERS, "64"));
+        set(WRITE_QUOTA, properties.getProperty(WRITE_QUOTA, Long.toString(10 * 1024 * 1024)));
+        set(GROUP_COMMIT_BATCH, properties.getProperty(GROUP_COMMIT_BATCH, "64"));
+        set(GROUP_COMMIT_DELAY, properties.getProperty(GROUP_COMMIT_DELAY, "5"));
+        set(SOURCE_RATE_LIMIT, properties.getProperty(SOURCE_RATE_LIMIT, "200"));
+        set(PARTIAL_MAX_AGE, properties.getProperty(PARTIAL_MAX_AGE, "86400"));
+    }
+
+    /**
+     * Loads the configuration from a properties file
+     * @param file path to the file
+     * @return the configuration
+     * @throws IOException if the file can't be read
+     * @throws IllegalArgumentException if a setting has an invalid value
+     */
+    public static ServerConfig load(String file) throws IOException
+    {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(file)))
+        {
+            properties.load(in);
+        }
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * @param name name of a setting
+     * @return current value of the setting
+     * @throws IllegalArgumentException if there is no such setting
+     */
+    public String get(String name)
+    {
+        switch (name)
+        {
+            case PORT: return Integer.toString(port);
+            case ADMIN_PORT: return Integer.toString(adminPort);
+            case READ_DIR: return readDir;
+            case READ_ARCHIVE: return readArchive;
+            case WRITE_DIR: return writeDir;
+            case AUDIT_DIR: return auditDir;
+            case CHUNK_STORE: return Boolean.toString(chunkStore);
+            case DURABLE_WRITES: return Boolean.toString(durableWrites);
+            case WARMUP_MANIFEST: return warmupManifest;
+            case WARMUP_TRANSFERS: return Integer.toString(warmupTransfers);
+            case TIMEOUT: return Integer.toString(waitingLimit);
+            case RETRIES: return Integer.toString(maximumRetries);
+            case MAX_TRANSFERS: return Integer.toString(maxTransfers);
+            case WRITE_QUOTA: return Long.toString(writeFolderSizeLimit);
+            case GROUP_COMMIT_BATCH: return Integer.toString(groupCommitBatch);
+            case GROUP_COMMIT_DELAY: return Integer.toString(groupCommitDelay);
+            case SOURCE_RATE_LIMIT: return Integer.toString(sourceRateLimit);
+            case PARTIAL_MAX_AGE: return Integer.toString(partialMaxAge);
+            default: throw new IllegalArgumentException("Unknown setting: " + name);
+        }
+    }
+
+    /**
+     * Changes a setting while the server runs. Transfers in progress pick up the new value.
+     * @param name name of the setting
+     * @param value new value
+     * @throws IllegalArgumentException if the setting can't be changed at runtime or the value is invalid
+     */
+    public void set(String name, String value)
+    {
+        switch (name)
+        {
+            case TIMEOUT: waitingLimit = parseInt(name, value, 1); break;
+            case RETRIES: maximumRetries = parseInt(name, value, 0); break;
+            case MAX_TRANSFERS: maxTransfers = parseInt(name, value, 1); break;
+            case WRITE_QUOTA: writeFolderSizeLimit = parseLong(name, value, 0); break;
+            case GROUP_COMMIT_BATCH: groupCommitBatch = parseInt(name, value, 1); break;
+            case GROUP_COMMIT_DELAY: groupCommitDelay = parseInt(name, value, 0); break;
+            case SOURCE_RATE_LIMIT: sourceRateLimit = parseInt(name, value, 0); break;
+            case PARTIAL_MAX_AGE: partialMaxAge = parseInt(name, value, 0); break;
+            default:
+                get(name); // Unknown settings are reported as such
+                throw new IllegalArgumentException(name + " can only be changed in the configuration file");
+        }
+    }
+
+    /**
+     * @return names of all settings, in the order they are listed
+     */
+    public static String[] names()
+    {
+        return new String[]{PORT, ADMIN_PORT, READ_DIR, READ_ARCHIVE, WRITE_DIR, AUDIT_DIR, CHUNK_STORE,
+                DURABLE_WRITES, WARMUP_MANIFEST, WARMUP_TRANSFERS, TIMEOUT, RETRIES, MAX_TRANSFERS, WRITE_QUOTA,
+                GROUP_COMMIT_BATCH, GROUP_COMMIT_DELAY, SOURCE_RATE_LIMIT, PARTIAL_MAX_AGE};
+    }
+
+    /**
+     * @param name name of a setting
+     * @return true if the setting can be changed while the server runs
+     */
+    public static boolean isLive(String name)
+    {
+        for (String live : LIVE_SETTINGS)
+        {
+            if (live.equals(name))
+                return true;
+        }
+        return false;
+    }
+
+    private static int parseInt(String name, String value, int min)
+    {
+        long parsed = parseLong(name, value, min);
+        if (parsed > Integer.MAX_VALUE)
+        {
+            throw new IllegalArgumentException("Value of " + name + " is too large: " + value);
+        }
+        return (int) parsed;
+    }
+
+    private static long parseLong(String name, String value, long min)
+    {
+        long parsed;
+        try
+        {
+            parsed = Long.parseLong(value.trim());
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IllegalArgumentException("Value of " + name + " is not a number: " + value);
+        }
+
+        if (parsed < min)
+        {
+            throw new IllegalArgumentException("Value of " + name + " must be at least " + min + ": " + value);
+        }
+        return parsed;
+    }
+
+    private static String directory(String dir)
+    {
+        // The folders are used as prefixes of the requested names
+        return dir.endsWith("/") ? dir : dir + "/";
+    }
+}
@@ -0,0 +1,333 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Sliding ring of recently read chunks of a large file, shared by all transfers reading it at the same time.
+ * The transfer furthest ahead pulls the next chunks from disk (a few ahead of itself, read asynchronously), the
+ * ones following it copy their blocks from the ring, so a burst of clients fetching the same file costs about
+ * one pass over the disk instead of one per client.
+ *
+ * The oldest chunks are dropped as the ring slides forward. A transfer that falls behind the ring (a slow client)
+ * or starts ahead of it (a restarted read) continues with a private ReadAheadSource from its position.
+ */
+public class SharedReadRing
+{
+    public static final int CHUNK_SIZE = 64 * 1024; // Size of each read, and of each chunk kept in the ring
+    private static final int AHEAD_CHUNKS = 4; // Chunks read ahead of the transfer furthest ahead
+    private static final int MIN_CHUNKS = 2 * AHEAD_CHUNKS; // Smallest ring worth sharing
+
+    // Counters reported through the admin channel
+    private static final AtomicLong chunkReads = new AtomicLong(0);
+    private static final AtomicLong fallbacks = new AtomicLong(0);
+
+    /**
+     * A chunk of the file, and the buffer it's read into
+     */
+    private static class Slot
+    {
+        long index = -1; // Chunk held (or being read), -1 if none
+        ByteBuffer buffer; // Allocated on first use
+        boolean ready = false;
+        int length = 0; // Bytes actually read, less than CHUNK_SIZE at the end of the file
+        Throwable failure;
+    }
+
+    public final ReadIndex.Entry file;
+    private final AsynchronousFileChannel channel;
+    private final Semaphore budget;
+    private final int budgetPermits; // Read-ahead permits taken for the ring, returned by free()
+    private final int aheadBlocks; // Read-ahead of the private cursors
+    private final Consumer<SharedReadRing> onIdle;
+    private final Slot[] slots;
+
+    private long start = 0; // First chunk in the ring
+    private long end = 0; // Chunk after the last one in the ring, i.e., the next one to read
+    private int users = 0;
+
+    private SharedReadRing(ReadIndex.Entry file, AsynchronousFileChannel channel, int chunks, Semaphore budget,
+                           int budgetPermits, int aheadBlocks, Consumer<SharedReadRing> onIdle)
+    {
+        this.file = file;
+        this.channel = channel;
+        this.budget = budget;
+        this.budgetPermits = budgetPermits;
+        this.aheadBlocks = aheadBlocks;
+        this.onIdle = onIdle;
+        this.slots = new Slot[chunks];
+        for (int i = 0; i < chunks; i++)
+        {
+            slots[i] = new Slot();
+        }
+    }
+
+    /**
+     * Creates a ring for a file, taking its memory from the read-ahead budget
+     * @param file file to share
+     * @param ringSize bytes to keep in the ring at most, a smaller ring is made if the budget is short
+     * @param aheadBlocks number of 512-byte blocks the private cursors read ahead
+     * @param budget shared read-ahead budget, one permit per ReadAheadSource.READ_SIZE bytes
+     * @param onIdle called when the last cursor is closed, the ring can be freed then
+     * @return the ring, null if the budget can't hold a ring worth sharing
+     * @throws IOException if the file can't be opened
+     */
+    public static SharedReadRing create(ReadIndex.Entry file, int ringSize, int aheadBlocks, Semaphore budget,
+                                        Consumer<SharedReadRing> onIdle) throws IOException
+    {
+        int permitsPerChunk = CHUNK_SIZE / ReadAheadSource.READ_SIZE;
+        int chunks = Math.max(MIN_CHUNKS, ringSize / CHUNK_SIZE);
+        while (chunks >= MIN_CHUNKS && !budget.tryAcquire(chunks * permitsPerChunk))
+        {
+            chunks /= 2;
+        }
+        if (chunks < MIN_CHUNKS)
+            return null;
+
+        try
+        {
+            return new SharedReadRing(file, file.acquire(), chunks, budget, chunks * permitsPerChunk, aheadBlocks,
+                    onIdle);
+        }
+        catch (IOException e)
+        {
+            budget.release(chunks * permitsPerChunk);
+            throw e;
+        }
+    }
+
+    /**
+     * @return chunks read from disk by all rings so far
+     */
+    public static long chunkReads()
+    {
+        return chunkReads.get();
+    }
+
+    /**
+     * @return transfers that left a ring for a private cursor so far
+     */
+    public static long fallbacks()
+    {
+        return fallbacks.get();
+    }
+
+    /**
+     * Starts a transfer reading from the ring. The cursor must be closed, the ring is idle once all are.
+     * @param offset position to start at
+     * @return source of the blocks
+     */
+    public synchronized BlockSource open(long offset)
+    {
+        users++;
+        return new Cursor(offset);
+    }
+
+    /**
+     * @return true if no cursor reads from the ring
+     */
+    public synchronized boolean isIdle()
+    {
+        return users == 0;
+    }
+
+    /**
+     * Releases the memory and the file of an idle ring. Reads still in flight fail quietly.
+     */
+    public void free()
+    {
+        budget.release(budgetPermits);
+        file.release();
+    }
+
+    private void leave()
+    {
+        boolean idle;
+        synchronized (this)
+        {
+            users--;
+            idle = users == 0;
+        }
+
+        if (idle)
+            onIdle.accept(this);
+    }
+
+    /**
+     * Copies data at a position from the ring, reading chunks from disk as needed
+     * @param position position in the file
+     * @param buf buffer to copy the data into
+     * @param offset where in buf the data starts
+     * @param length maximum number of bytes to copy
+     * @return number of bytes copied, 0 at the end of the file, -1 if the position is outside the ring
+     * @throws IOException if the chunk couldn't be read
+     */
+    private synchronized int read(long position, byte[] buf, int offset, int length) throws IOException
+    {
+        if (position >= file.size)
+            return 0;
+
+        long index = position / CHUNK_SIZE;
+        if (index < start)
+            return -1;
+
+        if (index > end)
+        {
+            // Only an empty ring moves to where the transfer is, otherwise the other transfers would lose it
+            if (start != end)
+                return -1;
+            start = end = index;
+        }
+
+        fill(index + AHEAD_CHUNKS);
+
+        Slot slot = slots[(int) (index % slots.length)];
+        try
+        {
+            while (slot.index == index && !slot.ready)
+            {
+                wait();
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a shared read");
+        }
+
+        // Dropped while waiting, the transfer has fallen behind
+        if (slot.index != index)
+            return -1;
+
+        if (slot.failure != null)
+            throw new IOException("Shared read failed", slot.failure);
+
+        int inChunk = (int) (position - index * CHUNK_SIZE);
+        int n = Math.max(0, Math.min(length, slot.length - inChunk));
+        slot.buffer.get(inChunk, buf, offset, n);
+        return n;
+    }
+
+    /**
+     * Starts reading the chunks up to an index into the ring, dropping the oldest ones to make room. Must be
+     * called holding the lock of the ring.
+     * @param last last chunk wanted
+     */
+    private void fill(long last)
+    {
+        last = Math.min(last, (file.size - 1) / CHUNK_SIZE);
+
+        while (end <= last)
+        {
+            if (end - start == slots.length)
+            {
+                // Chunks are dropped only once read, a slot is never reused while a read into it is in flight
+                if (!slots[(int) (start % slots.length)].ready)
+                    break;
+                start++;
+            }
+
+            Slot slot = slots[(int) (end % slots.length)];
+            if (slot.buffer == null)
+                slot.buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            slot.index = end;
+            slot.ready = false;
+            slot.failure = null;
+            slot.buffer.clear();
+            slot.buffer.limit((int) Math.min(CHUNK_SIZE, file.size - end * CHUNK_SIZE));
+
+            chunkReads.incrementAndGet();
+            channel.read(slot.buffer, end * CHUNK_SIZE, slot, completion);
+            end++;
+        }
+    }
+
+    private final CompletionHandler<Integer, Slot> completion = new CompletionHandler<Integer, Slot>()
+    {
+        @Override
+        public void completed(Integer read, Slot slot)
+        {
+            // Reads may complete partially, continue until the chunk is complete or the file has shrunk
+            if (read > 0 && slot.buffer.hasRemaining())
+            {
+                channel.read(slot.buffer, slot.index * CHUNK_SIZE + slot.buffer.position(), slot, this);
+                return;
+            }
+
+            synchronized (SharedReadRing.this)
+            {
+                slot.length = slot.buffer.position();
+                slot.ready = true;
+                SharedReadRing.this.notifyAll();
+            }
+        }
+
+        @Override
+        public void failed(Throwable e, Slot slot)
+        {
+            synchronized (SharedReadRing.this)
+            {
+                slot.failure = e;
+                slot.ready = true;
+                SharedReadRing.this.notifyAll();
+            }
+        }
+    };
+
+    /**
+     * Position of a single transfer in the ring
+     */
+    private class Cursor implements BlockSource
+    {
+        private long position;
+        private ReadAheadSource fallback; // Private cursor, once the transfer has left the ring
+        private boolean closed = false;
+
+        Cursor(long position)
+        {
+            this.position = position;
+        }
+
+        @Override
+        public int nextBlock(byte[] buf, int offset, int length) throws IOException
+        {
+            int copied = 0;
+
+            while (copied < length && fallback == null)
+            {
+                int n = read(position, buf, offset + copied, length - copied);
+                if (n == 0)
+                    return copied;
+
+                if (n < 0)
+                {
+                    // The channel stays with the ring, which outlives the cursor
+                    fallbacks.incrementAndGet();
+                    fallback = new ReadAheadSource(channel, file.size, position, aheadBlocks, budget, () -> {});
+                    break;
+                }
+                copied += n;
+                position += n;
+            }
+
+            if (fallback != null && copied < length)
+                copied += fallback.nextBlock(buf, offset + copied, length - copied);
+            return copied;
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            if (!closed)
+            {
+                closed = true;
+                if (fallback != null)
+                    fallback.close();
+                leave();
+            }
+        }
+    }
+}
@@ -0,0 +1,485 @@
+import java.io.*;
+import java.net.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-running soak test that hunts for resource leaks in the server. A few workers drive the server with a mix
+ * of the RogueClient scenarios: clean reads and writes, transfers the client abandons half way (so the server
+ * runs into its timeouts), transfers aborted with an error-packet, and invalid requests.
+ *
+ * At every sample the heap left after garbage collection, the live threads and the open file descriptors of
+ * the server are fetched through the admin channel, together with the latency of the clean reads. The test
+ * fails if any of them keeps growing over the last samples, the signature of a leak, or if the threads and file
+ * descriptors don't return to their level before the load once it's over. Without enough samples for a verdict
+ * the test is inconclusive, and exits with an error as well.
+ *
+ * Run it on the same machine as the server, e.g. "java SoakClient -minutes 240". Uploads are removed from the
+ * write folder again so the quota isn't used up.
+ */
+public class SoakClient
+{
+    private static final String REMOTE_IP = "localhost";
+    private static final int BUFSIZE = 516;
+    private static final int TIMEOUT = 2 * 1000;
+
+    // OP codes
+    private static final int OP_RRQ = 1;
+    private static final int OP_WRQ = 2;
+    private static final int OP_DAT = 3;
+    private static final int OP_ACK = 4;
+    private static final int OP_ERR = 5;
+
+    // Defaults of the command line settings
+    private static final int DEFAULT_MINUTES = 60;
+    private static final int DEFAULT_INTERVAL = 30; // Seconds between samples
+    private static final int DEFAULT_WORKERS = 4;
+    private static final String TEST_FILE = "kappa.png";
+    private static final int UPLOAD_NAMES = 16; // Upload names used by each worker, uploads are removed afterwards
+
+    // Constants related to the leak check
+    private static final int WARMUP_SAMPLES = 2; // Ignored, caches and pools fill up at first
+    private static final int TREND_WINDOWS = 5; // Windows of samples that must all rise to count as a leak
+    private static final int SETTLE_THREADS = 4; // Threads above the level before the load still accepted afterwards
+    private static final int SETTLE_FDS = 8; // Same for file descriptors, e.g. of pooled I/O threads
+    private static final int SETTLE_TIME = 90 * 1000; // Time given to return to that level, idle pool threads live 60 s
+
+    private final InetSocketAddress server;
+    private final InetSocketAddress admin;
+    private final File writeDir;
+    private final String testFile;
+
+    private final AtomicLong transfers = new AtomicLong(0);
+    private final AtomicLong unexpected = new AtomicLong(0);
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    /**
+     * A single measurement of the server
+     */
+    private static class Sample
+    {
+        long elapsed;
+        long heap;
+        long threads;
+        long fds;
+        long latency; // Median of the clean reads since the previous sample, in microseconds
+    }
+
+    public SoakClient(InetSocketAddress server, InetSocketAddress admin, File writeDir, String testFile)
+    {
+        this.server = server;
+        this.admin = admin;
+        this.writeDir = writeDir;
+        this.testFile = testFile;
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int minutes = DEFAULT_MINUTES;
+        int interval = DEFAULT_INTERVAL;
+        int workers = DEFAULT_WORKERS;
+        int port = 4970;
+        int adminPort = 4971;
+        String writeDir = "TFTP/write/";
+        String testFile = TEST_FILE;
+
+        try
+        {
+            for (int i = 0; i < args.length; i++)
+            {
+                switch (args[i])
+                {
+                    case "-minutes": minutes = Integer.parseInt(args[++i]); break;
+                    case "-interval": interval = Integer.parseInt(args[++i]); break;
+                    case "-workers": workers = Integer.parseInt(args[++i]); break;
+                    case "-port": port = Integer.parseInt(args[++i]); break;
+                    case "-admin": adminPort = Integer.parseInt(args[++i]); break;
+                    case "-writedir": writeDir = args[++i]; break;
+                    case "-file": testFile = args[++i]; break;
+                    default: throw new IllegalArgumentException(args[i]);
+                }
+            }
+        }
+        catch (RuntimeException e)
+        {
+            System.err.printf("usage: java %s [-minutes n] [-interval seconds] [-workers n] [-port n] [-admin n] " +
+                    "[-writedir folder] [-file name]\n", SoakClient.class.getCanonicalName());
+            System.exit(2);
+        }
+
+        SoakClient soak = new SoakClient(new InetSocketAddress(REMOTE_IP, port), new InetSocketAddress(REMOTE_IP, adminPort),
+                new File(writeDir), testFile);
+        boolean passed = soak.run(minutes * 60 * 1000L, interval * 1000L, workers);
+        System.exit(passed ? 0 : 1);
+    }
+
+    /**
+     * Drives the server for the given time and checks the samples for leaks
+     * @param duration milliseconds to run
+     * @param interval milliseconds between samples
+     * @param workers number of concurrent clients
+     * @return true if no leak was found
+     */
+    public boolean run(long duration, long interval, int workers) throws InterruptedException, IOException
+    {
+        Sample before = sample();
+        System.out.printf("Before the load: threads %d, fds %d\n", before.threads, before.fds);
+
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < workers; i++)
+        {
+            final int worker = i;
+            Thread thread = new Thread(() -> work(worker), "soak-worker-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+
+        List<Sample> samples = new ArrayList<>();
+        long start = System.currentTimeMillis();
+        System.out.println("elapsed_s heap_after_gc threads fds read_p50_us transfers unexpected");
+
+        while (System.currentTimeMillis() - start < duration)
+        {
+            Thread.sleep(Math.min(interval, duration - (System.currentTimeMillis() - start)));
+
+            Sample sample = sample();
+            sample.elapsed = System.currentTimeMillis() - start;
+            samples.add(sample);
+            System.out.printf("%d %d %d %d %d %d %d\n", sample.elapsed / 1000, sample.heap, sample.threads, sample.fds,
+                    sample.latency, transfers.get(), unexpected.get());
+        }
+
+        running = false;
+        for (Thread thread : threads)
+        {
+            thread.join();
+        }
+
+        // Give abandoned transfers time to run into their retry limit, then wait for the server to settle
+        Thread.sleep(TIMEOUT * 5);
+        Sample after = sample();
+        long settleStart = System.currentTimeMillis();
+        while (!settled(before, after) && System.currentTimeMillis() - settleStart < SETTLE_TIME)
+        {
+            Thread.sleep(TIMEOUT);
+            after = sample();
+        }
+        System.out.printf("After the load: threads %d, fds %d\n", after.threads, after.fds);
+
+        return check(samples, before, after);
+    }
+
+    /**
+     * @return true if the threads and file descriptors are back within the tolerance of their level before the load
+     */
+    private static boolean settled(Sample before, Sample after)
+    {
+        return after.threads <= before.threads + SETTLE_THREADS && after.fds <= before.fds + SETTLE_FDS;
+    }
+
+    /**
+     * Looks for steady growth in the samples after the warm-up, and for resources still held after the load
+     * @param samples all samples taken during the load
+     * @param before sample taken before the load
+     * @param after sample taken once the load is over
+     * @return true if nothing keeps growing and nothing is left behind
+     */
+    private boolean check(List<Sample> samples, Sample before, Sample after)
+    {
+        List<Sample> steady = samples.subList(Math.min(WARMUP_SAMPLES, samples.size()), samples.size());
+        if (steady.size() < TREND_WINDOWS * 2)
+        {
+            System.out.println("Too few samples for a verdict, run longer or sample more often.");
+            System.out.println("INCONCLUSIVE");
+            return false;
+        }
+
+        boolean passed = true;
+        passed &= checkTrend("heap after GC", steady, s -> s.heap, 0.10);
+        passed &= checkTrend("threads", steady, s -> s.threads, 0.0);
+        passed &= checkTrend("open file descriptors", steady, s -> s.fds, 0.0);
+        passed &= checkTrend("read latency", steady, s -> s.latency, 0.50);
+
+        if (!settled(before, after))
+        {
+            System.out.printf("FAIL: threads %d -> %d, fds %d -> %d, not released after the load\n", before.threads,
+                    after.threads, before.fds, after.fds);
+            passed = false;
+        }
+
+        if (unexpected.get() > 0)
+        {
+            System.out.println("FAIL: " + unexpected.get() + " transfers ended unexpectedly");
+            passed = false;
+        }
+
+        System.out.println(passed ? "PASS" : "FAIL");
+        return passed;
+    }
+
+    private interface Metric
+    {
+        long of(Sample sample);
+    }
+
+    /**
+     * Splits the samples in windows and compares the lowest value of each window, which filters out the noise of
+     * transfers in flight. A leak raises every window above the one before.
+     * @param name name of the metric for the report
+     * @param samples samples to check
+     * @param metric value to check
+     * @param tolerance growth from the first to the last window that is still accepted, as a fraction
+     * @return true if the metric doesn't keep growing
+     */
+    private boolean checkTrend(String name, List<Sample> samples, Metric metric, double tolerance)
+    {
+        int windowSize = samples.size() / TREND_WINDOWS;
+        long[] minimums = new long[TREND_WINDOWS];
+
+        for (int w = 0; w < TREND_WINDOWS; w++)
+        {
+            minimums[w] = Long.MAX_VALUE;
+            for (Sample sample : samples.subList(samples.size() - (TREND_WINDOWS - w) * windowSize,
+                    samples.size() - (TREND_WINDOWS - w - 1) * windowSize))
+            {
+                minimums[w] = Math.min(minimums[w], metric.of(sample));
+            }
+        }
+
+        boolean rising = true;
+        for (int w = 1; w < TREND_WINDOWS; w++)
+        {
+            rising &= minimums[w] > minimums[w - 1];
+        }
+
+        boolean grown = minimums[TREND_WINDOWS - 1] > minimums[0] * (1 + tolerance);
+        System.out.printf("%s: %s %s\n", name, Arrays.toString(minimums), rising && grown ? "GROWING" : "ok");
+        return !(rising && grown);
+    }
+
+    /**
+     * Fetches the resource usage of the server and the latency of the reads since the last sample
+     */
+    private Sample sample() throws IOException
+    {
+        Map<String, String> stats = new HashMap<>();
+        try (Socket socket = new Socket())
+        {
+            socket.connect(admin, TIMEOUT);
+            socket.setSoTimeout(TIMEOUT);
+            PrintWriter out = new PrintWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8), true);
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+
+            out.println("stats");
+            String line;
+            while ((line = in.readLine()) != null && !line.equals("OK"))
+            {
+                int split = line.indexOf('=');
+                if (split > 0)
+                    stats.put(line.substring(0, split), line.substring(split + 1));
+            }
+            out.println("quit");
+        }
+
+        Sample sample = new Sample();
+        sample.heap = Long.parseLong(stats.getOrDefault("heap.afterGc", "0"));
+        sample.threads = Long.parseLong(stats.getOrDefault("threads", "0"));
+        sample.fds = Long.parseLong(stats.getOrDefault("fds.open", "0"));
+
+        List<Long> recent = new ArrayList<>();
+        Long latency;
+        while ((latency = latencies.poll()) != null)
+        {
+            recent.add(latency);
+        }
+        Collections.sort(recent);
+        sample.latency = recent.isEmpty() ? 0 : recent.get(recent.size() / 2) / 1000;
+        return sample;
+    }
+
+    /**
+     * Runs random scenarios until the test ends
+     * @param worker number of the worker, used for unique upload names
+     */
+    private void work(int worker)
+    {
+        int count = 0;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+
+        while (running)
+        {
+            try (DatagramSocket socket = new DatagramSocket(0))
+            {
+                socket.setSoTimeout(TIMEOUT);
+                int scenario = random.nextInt(100);
+                boolean ok;
+
+                if (scenario < 40)
+                {
+                    long start = System.nanoTime();
+                    ok = read(socket, -1, false);
+                    latencies.add(System.nanoTime() - start);
+                }
+                else if (scenario < 60)
+                    ok = write(socket, "soak-" + worker + "-" + (count++ % UPLOAD_NAMES) + ".bin", false);
+                else if (scenario < 70)
+                    ok = read(socket, 2, false); // Abandoned, the server times out
+                else if (scenario < 80)
+                    ok = read(socket, 2, true); // Aborted with an error-packet
+                else if (scenario < 85)
+                    ok = write(socket, "soak-" + worker + "-" + (count++ % UPLOAD_NAMES) + ".bin", true);
+                else
+                    ok = invalid(socket, random.nextInt(3));
+
+                transfers.incrementAndGet();
+                if (!ok)
+                    unexpected.incrementAndGet();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Worker " + worker + ": " + e.getMessage());
+                unexpected.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Reads the test file
+     * @param socket client socket
+     * @param stopAfter number of blocks after which the client stops, -1 to read the whole file
+     * @param sendError true to end an early stop with an error-packet instead of silence
+     * @return true if the server behaved as expected
+     */
+    private boolean read(DatagramSocket socket, int stopAfter, boolean sendError) throws IOException
+    {
+        RogueClient.sendReadRequest(socket, server, testFile);
+
+        SocketAddress transfer = null;
+        int expected = 1;
+        while (true)
+        {
+            DatagramPacket packet = receive(socket);
+            if (packet == null || opcodeOf(packet) != OP_DAT)
+                return false;
+
+            transfer = packet.getSocketAddress();
+            if (blockOf(packet) != (expected & 0xffff))
+            {
+                // Retransmission of a block we already have, our ACK got lost
+                RogueClient.sendACKPacket(socket, transfer, expected - 1);
+                continue;
+            }
+
+            if (expected == stopAfter)
+            {
+                if (sendError)
+                    RogueClient.sendErrorPacket(socket, transfer, 0, "Soak test abort");
+                return true;
+            }
+
+            RogueClient.sendACKPacket(socket, transfer, expected);
+            if (packet.getLength() < BUFSIZE)
+                return true;
+            expected++;
+        }
+    }
+
+    /**
+     * Uploads a few blocks of random data, then removes the upload again
+     * @param socket client socket
+     * @param name name of the upload
+     * @param sendError true to abort the upload with an error-packet after the first block
+     * @return true if the server behaved as expected
+     */
+    private boolean write(DatagramSocket socket, String name, boolean sendError) throws IOException
+    {
+        byte[] data = new byte[512];
+        int blocks = 1 + ThreadLocalRandom.current().nextInt(8);
+
+        try
+        {
+            RogueClient.sendWriteRequest(socket, server, name);
+            DatagramPacket packet = receive(socket);
+            if (packet == null || opcodeOf(packet) != OP_ACK || blockOf(packet) != 0)
+                return false;
+            SocketAddress transfer = packet.getSocketAddress();
+
+            for (int block = 1; block <= blocks; block++)
+            {
+                if (sendError && block == 2)
+                {
+                    RogueClient.sendErrorPacket(socket, transfer, 0, "Soak test abort");
+                    return true;
+                }
+
+                ThreadLocalRandom.current().nextBytes(data);
+                int length = block == blocks ? ThreadLocalRandom.current().nextInt(512) : 512;
+
+                // Resend until acknowledged, the packets may get lost on a busy machine
+                boolean acked = false;
+                for (int tries = 0; tries < 5 && !acked; tries++)
+                {
+                    RogueClient.sendDataPacket(socket, transfer, block, data, length);
+                    packet = receive(socket);
+                    if (packet != null && opcodeOf(packet) == OP_ERR)
+                        return false;
+                    acked = packet != null && opcodeOf(packet) == OP_ACK && blockOf(packet) == block;
+                }
+                if (!acked)
+                    return false;
+            }
+            return true;
+        }
+        finally
+        {
+            new File(writeDir, name).delete();
+        }
+    }
+
+    /**
+     * Sends a request the server has to refuse
+     * @param socket client socket
+     * @param kind 0: missing file, 1: DATA without a transfer, 2: illegal opcode
+     * @return true if the server answered with an error-packet
+     */
+    private boolean invalid(DatagramSocket socket, int kind) throws IOException
+    {
+        if (kind == 0)
+            RogueClient.sendReadRequest(socket, server, "no-such-file-" + System.nanoTime());
+        else if (kind == 1)
+            RogueClient.sendDataPacket(socket, server, "unexpected");
+        else
+            RogueClient.sendIllegalOpCodeRequest(socket, server, RogueClient.ILLEGAL_OP_CODE);
+
+        DatagramPacket packet = receive(socket);
+        return packet != null && opcodeOf(packet) == OP_ERR;
+    }
+
+    private static DatagramPacket receive(DatagramSocket socket) throws IOException
+    {
+        DatagramPacket packet = new DatagramPacket(new byte[BUFSIZE], BUFSIZE);
+        try
+        {
+            socket.receive(packet);
+        }
+        catch (SocketTimeoutException e)
+        {
+            return null;
+        }
+        return packet;
+    }
+
+    private static int opcodeOf(DatagramPacket packet)
+    {
+        return packet.getLength() < 4 ? -1 : ((packet.getData()[0] & 0xff) << 8) | (packet.getData()[1] & 0xff);
+    }
+
+    private static int blockOf(DatagramPacket packet)
+    {
+        return ((packet.getData()[2] & 0xff) << 8) | (packet.getData()[3] & 0xff);
+    }
+}
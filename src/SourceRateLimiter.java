@@ -0,0 +1,75 @@
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Token bucket per source address, limiting how many invalid packets of one host the listener answers per second.
+ * Valid requests aren't charged, so many clients behind one address (e.g. PXE clients behind a relay or NAT) aren't
+ * held back. Each bucket holds up to one second worth of tokens, so short bursts pass.
+ *
+ * Only the most recently seen sources are tracked, so a flood from spoofed addresses can't grow the table. The
+ * flip side is that such a flood evicts buckets, and a source seen again after its bucket was evicted starts with
+ * a full one. With enough spoofed sources every packet gets a full bucket, so the limit only holds back hosts
+ * using a few addresses. Not thread-safe, each listener has its own.
+ */
+public class SourceRateLimiter
+{
+    private static final int MAX_SOURCES = 4096; // Sources tracked at most, the least recently seen are dropped
+
+    private static class Bucket
+    {
+        double tokens;
+        long lastNanos;
+    }
+
+    private final ServerConfig config;
+    private final Map<InetAddress, Bucket> buckets = new LinkedHashMap<InetAddress, Bucket>(256, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<InetAddress, Bucket> eldest)
+        {
+            return size() > MAX_SOURCES;
+        }
+    };
+
+    /**
+     * @param config configuration holding the rate, read again for every packet
+     */
+    public SourceRateLimiter(ServerConfig config)
+    {
+        this.config = config;
+    }
+
+    /**
+     * Takes a token for an invalid packet
+     * @param source address the packet came from
+     * @return true if the packet should be answered, false if the source is over its rate
+     */
+    public boolean tryAcquire(InetAddress source)
+    {
+        int rate = config.sourceRateLimit;
+        if (rate == 0)
+            return true;
+
+        long now = System.nanoTime();
+        Bucket bucket = buckets.get(source);
+        if (bucket == null)
+        {
+            bucket = new Bucket();
+            bucket.tokens = rate;
+            bucket.lastNanos = now;
+            buckets.put(source, bucket);
+        }
+        else
+        {
+            bucket.tokens = Math.min(rate, bucket.tokens + (now - bucket.lastNanos) * rate / 1e9);
+            bucket.lastNanos = now;
+        }
+
+        if (bucket.tokens < 1)
+            return false;
+
+        bucket.tokens--;
+        return true;
+    }
+}
@@ -0,0 +1,94 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Where read requests are served from. The server looks every requested name up in its backend, which is either
+ * the read folder (FileSystemBackend) or a packed archive of it (PackedArchiveBackend), and sends the entry it gets
+ * back through the same path either way. How a file is read, where its checksums come from and which variants of
+ * it are cached is up to the backend. Uploads always go to the write folder, backends are read-only.
+ */
+public interface StorageBackend extends Closeable
+{
+    String NETASCII = "netascii"; // Kind of the variant transcoded to netascii, the other kinds are Compressor codecs
+
+    /**
+     * A file of the backend
+     */
+    interface Entry
+    {
+        /**
+         * @return name of the file, relative to the root of the backend
+         */
+        String name();
+
+        /**
+         * @return size of the file in bytes
+         */
+        long size();
+
+        /**
+         * @return checksums of the file, null if they aren't known without reading the file
+         */
+        IntegrityIndex.Entry checksums();
+
+        /**
+         * Reads the file to compute its checksums, they're kept for later requests
+         * @return checksums of the file
+         * @throws IOException if the file can't be read
+         */
+        IntegrityIndex.Entry computeChecksums() throws IOException;
+
+        /**
+         * Offers the checksums computed while the file was sent, kept if they cover the whole file
+         * @param checksum checksum of the data sent
+         */
+        void checksummed(IntegrityIndex.Checksum checksum);
+
+        /**
+         * @return size of the file once transcoded to netascii
+         * @throws IOException if the file can't be read
+         */
+        long netasciiSize() throws IOException;
+
+        /**
+         * Returns the whole file transformed, from a cache if possible
+         * @param kind NETASCII or a Compressor codec
+         * @return the variant, null if the backend doesn't keep such variants or it isn't worth serving
+         * @throws IOException if the file can't be read
+         */
+        byte[] variant(String kind) throws IOException;
+
+        /**
+         * Opens the file for a transfer
+         * @param offset position to start at
+         * @return source of the blocks, must be closed
+         * @throws IOException if the file can't be opened
+         */
+        BlockSource open(long offset) throws IOException;
+    }
+
+    /**
+     * Looks up a requested file
+     * @param name requested name, relative to the root of the backend
+     * @return the entry, null if there is no such file or the name isn't safe
+     */
+    Entry lookup(String name);
+
+    /**
+     * @return all files of the backend
+     */
+    Collection<? extends Entry> entries();
+
+    /**
+     * @return number of files in the backend
+     */
+    int size();
+
+    /**
+     * Adds the counters of the backend to the server statistics
+     * @param stats statistics by name
+     */
+    void putStats(Map<String, String> stats);
+}
@@ -0,0 +1,750 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Embeddable TFTP client that downloads files. Every fetch returns a future that completes with the counters of
+ * the transfer, or exceptionally with a TFTPClient.ErrorException if the server sent an error-packet.
+ *
+ * All transfers are driven by a single thread over one Selector, each with its own non-blocking DatagramChannel,
+ * so many files can be fetched in parallel without a thread per transfer. At most maxTransfers run at a time,
+ * further fetches wait in a queue. The received blocks are written straight to a WritableByteChannel from the
+ * selector thread, so the output should be quick to write to, e.g. a FileChannel.
+ *
+ * The client asks for blksize (RFC 2348), windowsize (RFC 7440) and tsize (RFC 2349) and falls back to plain
+ * RFC 1350 lock-step with 512 byte blocks for options the server doesn't accept. The retransmission timeout
+ * adapts to the measured round-trip time of each transfer, as TCP does (RFC 6298), and backs off on timeouts.
+ *
+ * E.g. "java TFTPClient localhost:4970 -parallel 8 rfc1350.txt kappa.png".
+ */
+public class TFTPClient implements Closeable
+{
+    // OP codes
+    private static final int OP_RRQ = 1;
+    private static final int OP_DAT = 3;
+    private static final int OP_ACK = 4;
+    private static final int OP_ERR = 5;
+    private static final int OP_OACK = 6;
+
+    // Constants related to error packets
+    private static final int ERR_NOT_DEFINED = 0;
+    private static final int ERR_OPTION_NEGOTIATION = 8;
+
+    // Constants related to option negotiation
+    public static final int DEFAULT_BLOCK_SIZE = 512;
+    public static final int MAX_BLOCK_SIZE = 65464;
+    public static final int MAX_WINDOW_SIZE = 65535;
+    private static final String OPT_BLKSIZE = "blksize";
+
+    // Constants related to the retransmission timeout, all in milliseconds
+    private static final long INITIAL_RTO = 500;
+    private static final long MIN_RTO = 20;
+    private static final long MAX_RTO = 5 * 1000;
+    private static final int MAXIMUM_RETRIES = 6; // Timeouts in a row before a transfer is given up
+
+    private final InetSocketAddress server;
+    private final int maxTransfers;
+    private final int blockSize;
+    private final int windowSize;
+
+    private final Selector selector;
+    private final Thread thread;
+    private final ConcurrentLinkedQueue<Transfer> pending = new ConcurrentLinkedQueue<>();
+    private final List<Transfer> active = new ArrayList<>(); // Only touched by the selector thread
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(MAX_BLOCK_SIZE + 4);
+    private volatile boolean closed = false;
+
+    /**
+     * Counters of a single transfer, the result of a fetch
+     */
+    public static class Result
+    {
+        public final String file;
+        public long bytes = 0; // Payload bytes received
+        public long tsize = -1; // Size announced by the server, -1 if it didn't
+        public int blockSize = DEFAULT_BLOCK_SIZE; // Negotiated block size
+        public int windowSize = 1; // Negotiated window size
+        public int retransmits = 0; // Requests and ACKs sent again
+        public int timeouts = 0;
+        public long smoothedRtt = -1; // Smoothed round-trip time in microseconds, -1 if never measured
+        public long durationMillis = 0;
+
+        Result(String file)
+        {
+            this.file = file;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s: %d bytes in %d ms, blksize=%d windowsize=%d rtt=%dus retransmits=%d timeouts=%d",
+                    file, bytes, durationMillis, blockSize, windowSize, smoothedRtt, retransmits, timeouts);
+        }
+    }
+
+    /**
+     * Thrown when the server ends a transfer with an error-packet
+     */
+    public static class ErrorException extends IOException
+    {
+        private static final long serialVersionUID = 1L;
+
+        public final int errorCode;
+
+        ErrorException(int errorCode, String message)
+        {
+            super(message + " (error " + errorCode + ")");
+            this.errorCode = errorCode;
+        }
+    }
+
+    /**
+     * Starts the selector thread
+     * @param server address of the server
+     * @param maxTransfers transfers running at the same time, further fetches are queued
+     * @param blockSize block size to ask for, DEFAULT_BLOCK_SIZE to not negotiate it
+     * @param windowSize window size to ask for, 1 for lock-step
+     * @throws IOException if the selector can't be opened
+     */
+    public TFTPClient(InetSocketAddress server, int maxTransfers, int blockSize, int windowSize) throws IOException
+    {
+        if (maxTransfers < 1 || blockSize < 8 || blockSize > MAX_BLOCK_SIZE || windowSize < 1
+                || windowSize > MAX_WINDOW_SIZE)
+        {
+            throw new IllegalArgumentException("Invalid client settings");
+        }
+
+        this.server = server;
+        this.maxTransfers = maxTransfers;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+        this.selector = Selector.open();
+
+        thread = new Thread(this::selectLoop, "tftp-client");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Starts the selector thread, asking for 1428 byte blocks (fitting an Ethernet frame) and a window of 8 blocks
+     * @param server address of the server
+     * @param maxTransfers transfers running at the same time, further fetches are queued
+     * @throws IOException if the selector can't be opened
+     */
+    public TFTPClient(InetSocketAddress server, int maxTransfers) throws IOException
+    {
+        this(server, maxTransfers, 1428, 8);
+    }
+
+    public static void main(String[] args) throws Exception
+    {
+        int parallel = 4;
+        int blockSize = 1428;
+        int windowSize = 8;
+        String folder = ".";
+        List<String> files = new ArrayList<>();
+
+        if (args.length < 2)
+        {
+            System.out.println("usage: java TFTPClient host[:port] [-parallel n] [-blksize n] [-windowsize n] "
+                    + "[-dir folder] file...");
+            System.exit(1);
+        }
+
+        String[] hostPort = args[0].split(":");
+        InetSocketAddress server = new InetSocketAddress(hostPort[0],
+                hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : 4970);
+
+        for (int i = 1; i < args.length; i++)
+        {
+            switch (args[i])
+            {
+                case "-parallel": parallel = Integer.parseInt(args[++i]); break;
+                case "-blksize": blockSize = Integer.parseInt(args[++i]); break;
+                case "-windowsize": windowSize = Integer.parseInt(args[++i]); break;
+                case "-dir": folder = args[++i]; break;
+                default: files.add(args[i]);
+            }
+        }
+
+        int failed = 0;
+        try (TFTPClient client = new TFTPClient(server, parallel, blockSize, windowSize))
+        {
+            Map<String, CompletableFuture<Result>> results = new LinkedHashMap<>();
+            for (String file : files)
+            {
+                results.put(file, client.fetch(file, Paths.get(folder, Paths.get(file).getFileName().toString())));
+            }
+
+            for (Map.Entry<String, CompletableFuture<Result>> result : results.entrySet())
+            {
+                try
+                {
+                    System.out.println(result.getValue().join());
+                }
+                catch (CompletionException e)
+                {
+                    System.out.println(result.getKey() + ": " + e.getCause().getMessage());
+                    failed++;
+                }
+            }
+        }
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Queues a download
+     * @param file name of the file on the server
+     * @param out receiver of the file contents, left open
+     * @return completed with the counters of the transfer once the last block arrived
+     */
+    public CompletableFuture<Result> fetch(String file, WritableByteChannel out)
+    {
+        Transfer transfer = new Transfer(file, out);
+        if (closed)
+        {
+            transfer.future.completeExceptionally(new ClosedChannelException());
+            return transfer.future;
+        }
+
+        pending.add(transfer);
+        selector.wakeup();
+        return transfer.future;
+    }
+
+    /**
+     * Queues a download into a local file, which is replaced if it exists. The download is written to a temporary
+     * file next to it and only moved into place once complete, so a failed fetch leaves an existing file alone.
+     * @param file name of the file on the server
+     * @param target local file
+     * @return completed with the counters of the transfer once the file is written
+     */
+    public CompletableFuture<Result> fetch(String file, Path target)
+    {
+        CompletableFuture<Result> done = new CompletableFuture<>();
+        Path temp;
+        FileChannel out;
+        try
+        {
+            // Created like the target would be, a temporary file from Files.createTempFile is private to the owner
+            temp = target.resolveSibling("." + target.getFileName() + "." + Long.toHexString(System.nanoTime())
+                    + ".part");
+            out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+        catch (IOException e)
+        {
+            done.completeExceptionally(e);
+            return done;
+        }
+
+        Path written = temp;
+        fetch(file, out).whenComplete((result, e) ->
+        {
+            Throwable failure = e;
+            try
+            {
+                out.close();
+                if (failure == null)
+                    Files.move(written, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            }
+            catch (IOException closeOrMove)
+            {
+                if (failure == null)
+                    failure = closeOrMove;
+            }
+
+            if (failure == null)
+            {
+                done.complete(result);
+            }
+            else
+            {
+                discard(written);
+                done.completeExceptionally(failure);
+            }
+        });
+        return done;
+    }
+
+    /**
+     * Removes the temporary file of a failed download
+     * @param temp the file
+     */
+    private static void discard(Path temp)
+    {
+        try
+        {
+            Files.deleteIfExists(temp);
+        }
+        catch (IOException ignored)
+        {
+            // Only a leftover temporary file
+        }
+    }
+
+    /**
+     * Stops the selector thread, transfers that haven't finished fail with a ClosedChannelException
+     */
+    @Override
+    public void close()
+    {
+        closed = true;
+        selector.wakeup();
+        try
+        {
+            thread.join();
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void selectLoop()
+    {
+        try
+        {
+            while (!closed)
+            {
+                // Start queued transfers as running ones finish
+                while (active.size() < maxTransfers && !pending.isEmpty())
+                {
+                    pending.poll().start();
+                }
+
+                long now = System.nanoTime();
+                long wait = Long.MAX_VALUE;
+                for (Transfer transfer : active)
+                {
+                    wait = Math.min(wait, transfer.deadline - now);
+                }
+                if (wait == Long.MAX_VALUE)
+                    selector.select();
+                else
+                    selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+
+                for (SelectionKey key : selector.selectedKeys())
+                {
+                    ((Transfer) key.attachment()).receive();
+                }
+                selector.selectedKeys().clear();
+
+                // Retransmit where the reply is overdue, and drop cancelled transfers
+                now = System.nanoTime();
+                for (Transfer transfer : new ArrayList<>(active))
+                {
+                    if (transfer.future.isDone())
+                        transfer.end();
+                    else if (now - transfer.deadline >= 0)
+                        transfer.timeout();
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("TFTP client selector failed: " + e.getMessage());
+        }
+        finally
+        {
+            closed = true;
+            for (Transfer transfer : new ArrayList<>(active))
+            {
+                transfer.fail(new ClosedChannelException());
+            }
+            Transfer transfer;
+            while ((transfer = pending.poll()) != null)
+            {
+                transfer.future.completeExceptionally(new ClosedChannelException());
+            }
+            try
+            {
+                selector.close();
+            }
+            catch (IOException ignored)
+            {
+                // Nothing left to release
+            }
+        }
+    }
+
+    /**
+     * State of a single download, only touched by the selector thread
+     */
+    private class Transfer
+    {
+        final String file;
+        final WritableByteChannel out;
+        final CompletableFuture<Result> future = new CompletableFuture<>();
+        final Result result;
+
+        long startNanos; // Set when the transfer leaves the queue
+        DatagramChannel channel;
+        SocketAddress remote = server; // Becomes the transfer ID (address and port) of the server on its first reply
+        boolean connected = false;
+        boolean negotiated = false; // Set by the OACK or the first DATA-packet
+        long expected = 1; // Next block number, not wrapped
+        long acked = 0; // Block acknowledged last, the server's window starts after it
+        boolean gapAcked = false; // An ACK was sent for a gap in the window since the last progress
+
+        ByteBuffer lastSent; // Request or ACK sent last
+        long sentNanos;
+        boolean measuring = false; // The next reply times the round trip, cleared when retransmitting (Karn)
+        long rto = INITIAL_RTO;
+        long srtt = -1; // In microseconds
+        long rttvar = 0;
+        int retries = 0;
+        long deadline;
+
+        Transfer(String file, WritableByteChannel out)
+        {
+            this.file = file;
+            this.out = out;
+            this.result = new Result(file);
+        }
+
+        /**
+         * Opens the channel and sends the read request
+         */
+        void start()
+        {
+            startNanos = System.nanoTime();
+            try
+            {
+                channel = DatagramChannel.open();
+                channel.configureBlocking(false);
+                channel.bind(null);
+                channel.register(selector, SelectionKey.OP_READ, this);
+                active.add(this);
+                send(createRRQ());
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+        }
+
+        private ByteBuffer createRRQ()
+        {
+            StringBuilder request = new StringBuilder();
+            request.append(file).append('\0').append("octet").append('\0');
+            if (blockSize != DEFAULT_BLOCK_SIZE)
+                request.append(OPT_BLKSIZE).append('\0').append(blockSize).append('\0');
+            if (windowSize != 1)
+                request.append(TransferOptions.OPT_WINDOWSIZE).append('\0').append(windowSize).append('\0');
+            request.append(TransferOptions.OPT_TSIZE).append('\0').append(0).append('\0');
+
+            byte[] text = request.toString().getBytes(StandardCharsets.UTF_8);
+            ByteBuffer packet = ByteBuffer.allocate(2 + text.length);
+            packet.putShort((short) OP_RRQ).put(text).flip();
+            return packet;
+        }
+
+        /**
+         * Sends a new request or ACK, which restarts the timeout and times the round trip
+         */
+        private void send(ByteBuffer packet) throws IOException
+        {
+            lastSent = packet;
+            sentNanos = System.nanoTime();
+            measuring = true;
+            deadline = sentNanos + TimeUnit.MILLISECONDS.toNanos(rto);
+            channel.send(packet.duplicate(), remote); // A full send buffer loses the packet, the timeout recovers it
+        }
+
+        private void sendACK(long block) throws IOException
+        {
+            ByteBuffer ack = ByteBuffer.allocate(4);
+            ack.putShort((short) OP_ACK).putShort((short) block).flip();
+            send(ack);
+            acked = block;
+        }
+
+        private void sendERR(int errorCode, String message)
+        {
+            byte[] text = message.getBytes(StandardCharsets.UTF_8);
+            ByteBuffer packet = ByteBuffer.allocate(5 + text.length);
+            packet.putShort((short) OP_ERR).putShort((short) errorCode).put(text).put((byte) 0).flip();
+            try
+            {
+                channel.send(packet, remote);
+            }
+            catch (IOException ignored)
+            {
+                // The server times out on its own
+            }
+        }
+
+        /**
+         * Handles every packet waiting on the channel
+         */
+        void receive()
+        {
+            try
+            {
+                SocketAddress from;
+                while (!future.isDone() && (from = channel.receive(receiveBuffer)) != null)
+                {
+                    receiveBuffer.flip();
+                    if (!connected)
+                    {
+                        // The server replies from a new port, which identifies the transfer from now on
+                        if (!((InetSocketAddress) from).getAddress().equals(server.getAddress()))
+                        {
+                            receiveBuffer.clear();
+                            continue;
+                        }
+                        remote = from;
+                        channel.connect(from);
+                        connected = true;
+                    }
+                    handle(receiveBuffer);
+                    receiveBuffer.clear();
+                }
+            }
+            catch (IOException e)
+            {
+                sendERR(ERR_NOT_DEFINED, "Transfer failed");
+                fail(e);
+            }
+        }
+
+        private void handle(ByteBuffer packet) throws IOException
+        {
+            if (packet.remaining() < 4)
+                return;
+
+            int opcode = packet.getShort() & 0xffff;
+            switch (opcode)
+            {
+                case OP_ERR:
+                    int errorCode = packet.getShort() & 0xffff;
+                    byte[] text = new byte[packet.remaining()];
+                    packet.get(text);
+                    String message = new String(text, StandardCharsets.UTF_8);
+                    int end = message.indexOf('\0');
+                    fail(new ErrorException(errorCode, end >= 0 ? message.substring(0, end) : message));
+                    break;
+
+                case OP_OACK:
+                    if (negotiated)
+                    {
+                        // Our ACK 0 got lost
+                        if (expected == 1)
+                            retransmit();
+                        return;
+                    }
+                    sampleRtt();
+                    if (!acceptOACK(packet))
+                        return;
+                    negotiated = true;
+                    retries = 0;
+                    sendACK(0);
+                    break;
+
+                case OP_DAT:
+                    // Without an OACK the server went with the RFC 1350 defaults
+                    negotiated = true;
+                    receiveData(packet.getShort() & 0xffff, packet);
+                    break;
+
+                default:
+                    sendERR(ERR_NOT_DEFINED, "Unexpected packet");
+                    fail(new IOException("Unexpected packet with opcode " + opcode));
+            }
+        }
+
+        /**
+         * Takes over the options the server agreed on
+         * @return false if the server answered with options we can't use, the transfer has failed then
+         */
+        private boolean acceptOACK(ByteBuffer packet)
+        {
+            byte[] body = new byte[packet.remaining()];
+            packet.get(body);
+            String[] parts = new String(body, StandardCharsets.UTF_8).split("\0");
+
+            try
+            {
+                for (int i = 0; i + 1 < parts.length; i += 2)
+                {
+                    String name = parts[i].toLowerCase();
+                    long value = Long.parseLong(parts[i + 1]);
+                    if (name.equals(OPT_BLKSIZE) && value >= 8 && value <= blockSize)
+                        result.blockSize = (int) value;
+                    else if (name.equals(TransferOptions.OPT_WINDOWSIZE) && value >= 1 && value <= windowSize)
+                        result.windowSize = (int) value;
+                    else if (name.equals(TransferOptions.OPT_TSIZE) && value >= 0)
+                        result.tsize = value;
+                    else
+                        throw new NumberFormatException("Unacceptable option " + name + "=" + value);
+                }
+            }
+            catch (NumberFormatException e)
+            {
+                sendERR(ERR_OPTION_NEGOTIATION, "Option negotiation failed");
+                fail(new IOException(e.getMessage()));
+                return false;
+            }
+            return true;
+        }
+
+        private void receiveData(int blockNumber, ByteBuffer data) throws IOException
+        {
+            if (blockNumber != (int) (expected & 0xffff))
+            {
+                // Blocks we already have are ignored: answering them could make a server that resends on
+                // duplicate ACKs send everything twice (Sorcerer's Apprentice), a lost ACK is resent on timeout
+                if (((blockNumber - expected) & 0xffff) >= 0x8000)
+                    return;
+
+                // A gap in the window: ask for a restart after the last block we have, once
+                if (!gapAcked)
+                {
+                    gapAcked = true;
+                    result.retransmits++;
+                    sendACK(expected - 1);
+                    measuring = false;
+                }
+                return;
+            }
+
+            if (expected - 1 == acked)
+                sampleRtt();
+
+            int length = data.remaining();
+            while (data.hasRemaining())
+            {
+                out.write(data);
+            }
+            result.bytes += length;
+            expected++;
+            retries = 0;
+            gapAcked = false;
+
+            if (length < result.blockSize)
+            {
+                sendACK(blockNumber);
+                finish();
+            }
+            else if (expected - 1 - acked >= result.windowSize)
+            {
+                sendACK(blockNumber);
+            }
+            else
+            {
+                // The rest of the window should follow right away
+                deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(rto);
+            }
+        }
+
+        /**
+         * Updates the retransmission timeout with the time since the last packet was sent (RFC 6298)
+         */
+        private void sampleRtt()
+        {
+            if (!measuring)
+                return;
+            measuring = false;
+
+            long sample = Math.max(1, (System.nanoTime() - sentNanos) / 1000);
+            if (srtt < 0)
+            {
+                srtt = sample;
+                rttvar = sample / 2;
+            }
+            else
+            {
+                rttvar = (3 * rttvar + Math.abs(srtt - sample)) / 4;
+                srtt = (7 * srtt + sample) / 8;
+            }
+            rto = Math.min(MAX_RTO, Math.max(MIN_RTO, (srtt + 4 * rttvar) / 1000));
+            result.smoothedRtt = srtt;
+        }
+
+        /**
+         * No reply in time: sends the last packet again with a doubled timeout
+         */
+        void timeout()
+        {
+            if (retries >= MAXIMUM_RETRIES)
+            {
+                sendERR(ERR_NOT_DEFINED, "Transfer timed out");
+                fail(new SocketTimeoutException("No reply from server for " + file));
+                return;
+            }
+
+            retries++;
+            result.timeouts++;
+            rto = Math.min(MAX_RTO, rto * 2);
+            try
+            {
+                retransmit();
+            }
+            catch (IOException e)
+            {
+                fail(e);
+            }
+        }
+
+        /**
+         * Sends the request again, or acknowledges the blocks received so far, so the server restarts its window
+         * right after them
+         */
+        private void retransmit() throws IOException
+        {
+            result.retransmits++;
+            if (negotiated)
+                sendACK(expected - 1);
+            else
+                send(lastSent);
+            measuring = false;
+        }
+
+        private void finish()
+        {
+            result.durationMillis = (System.nanoTime() - startNanos) / 1000000;
+            end();
+            future.complete(result);
+        }
+
+        void fail(Throwable e)
+        {
+            end();
+            future.completeExceptionally(e);
+        }
+
+        /**
+         * Releases the channel, the next queued transfer can start
+         */
+        void end()
+        {
+            active.remove(this);
+            if (channel != null)
+            {
+                try
+                {
+                    channel.close();
+                }
+                catch (IOException ignored)
+                {
+                    // The channel is gone either way
+                }
+            }
+        }
+    }
+}
@@ -1,9 +1,33 @@
 import com.sun.media.sound.InvalidDataException;
 import javax.naming.SizeLimitExceededException;
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.lang.management.OperatingSystemMXBean;
 import java.net.*;
 import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
 import java.util.zip.DataFormatException;
 
 /**
@@ -14,10 +38,12 @@ import java.util.zip.DataFormatException;
 
 public class TFTPServer
 {
-    private static final int TFTPPORT = 4970;
     private static final int BUFSIZE = 516;
-    private static final String READDIR = "TFTP/read/";
-    private static final String WRITEDIR = "TFTP/write/";
+    private static final String CONFIG_FILE = "tftp.properties"; // Loaded if present and no other file is given
+
+    // Transfer modes
+    private static final String MODE_OCTET = "octet";
+    private static final String MODE_NETASCII = "netascii";
 
     // OP codes
     private static final int OP_RRQ = 1;
@@ -25,10 +51,8 @@ public class TFTPServer
     private static final int OP_DAT = 3;
     private static final int OP_ACK = 4;
     private static final int OP_ERR = 5;
-
-    // Constants related to retransmissions
-    private static final int WAITING_LIMIT = 200; // Specifies how long we should wait for a ACK before re-transmitting
-    private static final int MAXIMUM_RETRIES = 10; // Maximum re-transmitting tries
+    private static final int OP_OACK = 6;
+    private static final int OP_MALFORMED = -1; // Returned by ParseRQ for requests that can't be parsed
 
     // Constants related to error packets
     private static final int ERR_NOT_DEFINED = 0;
@@ -39,125 +63,517 @@ public class TFTPServer
     private static final int ERR_UNKNOWN_TRANSFER_ID = 5;
     private static final int ERR_FILE_ALREADY_EXISTS = 6;
     private static final int ERR_NO_SUCH_USER = 7;
+    private static final int ERR_OPTION_NEGOTIATION = 8;
 
     // Corresponding error messages to the error codes above
     private static final String[] ERROR_MESSAGES = {"", "File not found.", "Access violation.", "Disk full or allocation exceeded.",
-            "Illegal TFTP operation.", "Unknown transfer ID.", "File already exists.", "No such user."};
-
-    // Constants related to size limit for write folder
+            "Illegal TFTP operation.", "Unknown transfer ID.", "File already exists.", "No such user.",
+            "Option negotiation failed."};
+    private static final String INVALID_MODE_MESSAGE = "Invalid mode of operation. Supported modes are octet and netascii.";
+
+    // Error-packets the listener answers invalid packets with, prepared once
+    private static final byte[] ERR_PACKET_UNKNOWN_TRANSFER_ID = createERR(ERR_UNKNOWN_TRANSFER_ID,
+            ERROR_MESSAGES[ERR_UNKNOWN_TRANSFER_ID]);
+    private static final byte[] ERR_PACKET_ILLEGAL_OPERATION = createERR(ERR_ILLEGAL_OPERATION,
+            ERROR_MESSAGES[ERR_ILLEGAL_OPERATION]);
+    private static final byte[] ERR_PACKET_INVALID_MODE = createERR(ERR_NOT_DEFINED, INVALID_MODE_MESSAGE);
+
+    // Suffix used for uploads that are still in progress (or were interrupted and can be resumed)
+    private static final String PARTIAL_SUFFIX = ".part";
+    private static final int PARTIAL_SWEEP_INTERVAL = 60 * 1000; // Milliseconds between sweeps of stale partial files
+
+    // Constants related to sizes
     private static int BYTES_PER_KB = 1024;
     private static int KB_PER_MB = 1024;
-    private static int WRITE_FOLDER_SIZE_LIMIT = 10 * KB_PER_MB * BYTES_PER_KB;
+
+    // Constants related to windowed uploads (RFC 7440)
+    private static final int MAX_WINDOW_SIZE = 64; // Largest window accepted, bounds the reassembly buffers
+
+    // Constants related to read-ahead of files being sent
+    private static final int READ_AHEAD_BLOCKS = 64; // Blocks kept ready ahead of the block in flight, per transfer
+    private static final int READ_AHEAD_BUDGET = 32 * KB_PER_MB * BYTES_PER_KB; // Read-ahead memory for all transfers
+
+    // Constants related to the warm-up at startup
+    private static final int WARMUP_MAX_FILE_SIZE = KB_PER_MB * BYTES_PER_KB; // Larger files aren't used for warm-up reads
+    private static final int WARMUP_PARALLEL = 8; // Warm-up reads running at the same time
+
+    // Constants related to the audit log
+    private static final int AUDIT_SEGMENTS = 16; // Number of audit log segments kept on disk
+
+    // Folders, ports, and the settings that can be changed through the admin channel
+    private final ServerConfig config;
+
+    // Checksums of the files in the write folder, the read backend keeps its own
+    private final IntegrityIndex writeIndex;
+
+    // Read-ahead buffers shared by all transfers, one permit per buffer
+    private final Semaphore readAheadBudget = new Semaphore(READ_AHEAD_BUDGET / ReadAheadSource.READ_SIZE);
+
+    // Where read requests are served from, the read folder (kept up to date as it changes) or a packed archive
+    private StorageBackend readBackend;
+
+    // Record of all transfers, null if the log couldn't be opened
+    private volatile AuditLog auditLog;
+
+    // Deduplicated store for uploads, null unless enabled in the configuration
+    private ChunkStore chunkStore;
+
+    // Forces completed uploads to disk in batches, null unless durable writes are enabled
+    private GroupCommitter groupCommitter;
+
+    // Partial files of the uploads in progress, neither swept nor opened by a second upload with the same token
+    private final Set<Path> activePartials = ConcurrentHashMap.newKeySet();
+
+    // Counters reported through the admin channel
+    private final long startTime = System.currentTimeMillis();
+    private final AtomicInteger activeTransfers = new AtomicInteger(0);
+    private final AtomicLong totalTransfers = new AtomicLong(0);
+    private final AtomicLong failedTransfers = new AtomicLong(0);
+    private final AtomicLong refusedTransfers = new AtomicLong(0);
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private final AtomicLong totalRetransmits = new AtomicLong(0);
+    private final AtomicLong rejectedPackets = new AtomicLong(0); // Invalid packets answered (or ignored) by the listener
+    private final AtomicLong rateLimitedPackets = new AtomicLong(0); // Rejections not sent for their host's rate
+
+    // Set while draining, new transfers are refused until the server is resumed
+    private volatile boolean draining = false;
+
+    // Milliseconds spent in each startup phase, and whether the server is warm and listening
+    private final Map<String, Long> startupPhases = new LinkedHashMap<>();
+    private volatile boolean ready = false;
 
     public static void main(String[] args) {
-        if (args.length > 0)
+        // A training run exits once warm instead of opening the port, e.g. to dump an AppCDS archive at exit
+        boolean exitWhenReady = args.length > 0 && args[0].equals("-exit-when-ready");
+        if (exitWhenReady)
+            args = Arrays.copyOfRange(args, 1, args.length);
+
+        if (args.length > 1)
+        {
+            System.err.printf("usage: java %s [-exit-when-ready] [config-file]\n", TFTPServer.class.getCanonicalName());
+            System.exit(1);
+        }
+
+        ServerConfig config;
+        try
         {
-            System.err.printf("usage: java %s\n", TFTPServer.class.getCanonicalName());
+            if (args.length == 1)
+                config = ServerConfig.load(args[0]);
+            else if (new File(CONFIG_FILE).exists())
+                config = ServerConfig.load(CONFIG_FILE);
+            else
+                config = new ServerConfig(new Properties());
+        }
+        catch (IOException | IllegalArgumentException e)
+        {
+            System.err.println("Could not load the configuration: " + e.getMessage());
             System.exit(1);
+            return;
         }
+
         //Starting the server
         try
         {
-            TFTPServer server= new TFTPServer();
-            server.start();
+            TFTPServer server= new TFTPServer(config);
+            server.start(exitWhenReady);
         }
         catch (SocketException e)
         {e.printStackTrace();}
     }
 
-    private void start() throws SocketException
+    /**
+     * @param config settings of the server
+     */
+    public TFTPServer(ServerConfig config)
     {
-        byte[] buf= new byte[BUFSIZE];
+        this.config = config;
+        this.writeIndex = new IntegrityIndex(config.writeDir);
+    }
+
+    /**
+     * Writes what's still pending when the server exits
+     */
+    private void shutdown()
+    {
+        if (auditLog != null)
+            auditLog.close();
+        writeIndex.flush();
+        try
+        {
+            readBackend.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not close the read backend: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Runs the startup phases and then serves requests on the port. Each phase is timed, and the server only
+     * reports ready once the caches and the transfer code are warm.
+     * @param exitWhenReady exit after the warm-up instead of opening the port
+     * @throws SocketException if the port can't be bound
+     */
+    private void start(boolean exitWhenReady) throws SocketException
+    {
+        long startNanos = System.nanoTime();
+        long phaseNanos = startNanos;
+
+        if (config.readArchive.isEmpty())
+        {
+            try
+            {
+                ReadIndex readFolder = new ReadIndex(config.readDir);
+                readBackend = new FileSystemBackend(readFolder, new IntegrityIndex(config.readDir), READ_AHEAD_BLOCKS,
+                        readAheadBudget);
+                System.out.printf("Indexed %d files in %s\n", readFolder.size(), config.readDir);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not index the read folder: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        else
+        {
+            try
+            {
+                readBackend = new PackedArchiveBackend(Paths.get(config.readArchive));
+                System.out.printf("Mapped %d files of archive %s\n", readBackend.size(), config.readArchive);
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not open the read archive: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+
+        if (config.durableWrites)
+        {
+            groupCommitter = new GroupCommitter(config);
+        }
+
+        if (config.chunkStore)
+        {
+            try
+            {
+                chunkStore = new ChunkStore(config.writeDir + ChunkStore.DIRECTORY,
+                        groupCommitter == null ? null : this::makeDurable);
+                System.out.printf("Chunk store holds %d bytes\n", chunkStore.storedBytes());
+            }
+            catch (IOException e)
+            {
+                System.err.println("Could not open the chunk store: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        phaseNanos = endPhase("index", phaseNanos);
+
+        // Uploads interrupted long ago aren't resumed anymore, they only take up the quota
+        Thread sweeper = new Thread(this::sweepPartialsLoop, "partial-sweeper");
+        sweeper.setDaemon(true);
+        sweeper.start();
+
+        // Checksums computed from here on are written in the background, the last of them at exit
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+
+        // The admin channel comes up early, so readiness can be polled during the warm-up
+        if (config.adminPort > 0)
+        {
+            try
+            {
+                new AdminServer(this, config);
+                System.out.printf("Admin channel at 127.0.0.1 port %d\n", config.adminPort);
+            }
+            catch (IOException e)
+            {
+                System.out.println("Could not open the admin channel: " + e.getMessage());
+            }
+        }
+
+        List<StorageBackend.Entry> hotFiles = loadWarmupManifest();
+        prewarm(hotFiles);
+        phaseNanos = endPhase("prewarm", phaseNanos);
+
+        warmup(hotFiles);
+        phaseNanos = endPhase("warmup", phaseNanos);
+
+        if (exitWhenReady)
+        {
+            System.out.printf("READY (training run) after %d ms %s\n",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), startupPhases);
+            System.exit(0);
+        }
+
+        // Opened after the warm-up, so the synthetic transfers aren't logged
+        try
+        {
+            auditLog = new AuditLog(config.auditDir, AUDIT_SEGMENTS);
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not open audit log, transfers won't be logged: " + e.getMessage());
+        }
 
         // Create socket
         DatagramSocket socket= new DatagramSocket(null);
 
         // Create local bind point
-        SocketAddress localBindPoint= new InetSocketAddress(TFTPPORT);
+        SocketAddress localBindPoint= new InetSocketAddress(config.port);
         socket.bind(localBindPoint);
+        endPhase("bind", phaseNanos);
 
-        System.out.printf("Listening at port %d for new requests\n", TFTPPORT);
+        ready = true;
+        System.out.printf("READY after %d ms %s\n", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos),
+                startupPhases);
+        System.out.printf("Listening at port %d for new requests\n", config.port);
 
-        // Loop to handle client requests
-        while (true)
+        listen(socket, new SourceRateLimiter(config));
+    }
+
+    /**
+     * Records the duration of a startup phase
+     * @param phase name of the phase
+     * @param phaseStart System.nanoTime() at the start of the phase
+     * @return System.nanoTime() at the end of the phase, i.e., the start of the next one
+     */
+    private long endPhase(String phase, long phaseStart)
+    {
+        long now = System.nanoTime();
+        synchronized (startupPhases)
+        {
+            startupPhases.put(phase, TimeUnit.NANOSECONDS.toMillis(now - phaseStart));
+        }
+        return now;
+    }
+
+    /**
+     * Reads the warm-up manifest, names that aren't in the read folder are skipped
+     * @return the listed files, hottest first, empty if there is no manifest
+     */
+    private List<StorageBackend.Entry> loadWarmupManifest()
+    {
+        List<StorageBackend.Entry> files = new ArrayList<>();
+        if (config.warmupManifest.isEmpty())
+            return files;
+
+        try
+        {
+            for (String line : Files.readAllLines(Paths.get(config.warmupManifest)))
+            {
+                String name = line.trim();
+                if (name.isEmpty() || name.startsWith("#"))
+                    continue;
+
+                StorageBackend.Entry file = readBackend.lookup(name);
+                if (file != null)
+                    files.add(file);
+                else
+                    System.out.println("Warm-up manifest lists an unknown file: " + name);
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Could not read the warm-up manifest: " + e.getMessage());
+        }
+        return files;
+    }
+
+    /**
+     * Reads the hot files once, so their checksums are in the index and their data is in the page cache when
+     * the first clients ask for them
+     * @param files files to read
+     */
+    private void prewarm(List<StorageBackend.Entry> files)
+    {
+        long bytes = 0;
+        byte[] buf = new byte[64 * BYTES_PER_KB];
+
+        for (StorageBackend.Entry file : files)
+        {
+            try
+            {
+                if (file.checksums() == null)
+                {
+                    file.computeChecksums();
+                }
+                else
+                {
+                    // Checksums are known already, only the data has to be pulled into memory
+                    try (BlockSource source = file.open(0))
+                    {
+                        while (source.nextBlock(buf, 0, buf.length) > 0)
+                        {
+                            // Reading is all that's needed
+                        }
+                    }
+                }
+                bytes += file.size();
+            }
+            catch (IOException e)
+            {
+                System.out.println("Could not pre-warm " + file.name() + ": " + e.getMessage());
+            }
+        }
+
+        if (!files.isEmpty())
+            System.out.printf("Pre-warmed %d files, %d bytes\n", files.size(), bytes);
+    }
+
+    /**
+     * Gets the request and transfer code compiled before clients arrive, by serving synthetic reads over a
+     * loopback port with the TFTPClient. The counters are reset afterwards.
+     * @param hotFiles files to read, the smaller files of the read folder are used if there are none
+     */
+    private void warmup(List<StorageBackend.Entry> hotFiles)
+    {
+        if (config.warmupTransfers == 0)
+            return;
+
+        // Large files would make the warm-up slow without compiling anything more
+        List<String> names = new ArrayList<>();
+        for (StorageBackend.Entry file : hotFiles.isEmpty() ? readBackend.entries() : hotFiles)
+        {
+            if (file.size() <= WARMUP_MAX_FILE_SIZE)
+                names.add(file.name());
+        }
+        if (names.isEmpty())
+        {
+            System.out.println("No files small enough for the warm-up, skipping it");
+            return;
+        }
+
+        int done = 0;
+        int failed = 0;
+        try (DatagramSocket socket = new DatagramSocket(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0)))
+        {
+            Thread listener = new Thread(() -> listen(socket, null), "warmup-listener");
+            listener.setDaemon(true);
+            listener.start();
+
+            InetSocketAddress address = new InetSocketAddress(InetAddress.getLoopbackAddress(), socket.getLocalPort());
+            try (TFTPClient client = new TFTPClient(address, WARMUP_PARALLEL))
+            {
+                List<CompletableFuture<TFTPClient.Result>> results = new ArrayList<>();
+                WritableByteChannel discard = Channels.newChannel(OutputStream.nullOutputStream());
+                for (int i = 0; i < config.warmupTransfers; i++)
+                {
+                    results.add(client.fetch(names.get(i % names.size()), discard));
+                }
+
+                for (CompletableFuture<TFTPClient.Result> result : results)
+                {
+                    try
+                    {
+                        result.join();
+                        done++;
+                    }
+                    catch (CompletionException e)
+                    {
+                        failed++;
+                    }
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            System.out.println("Warm-up failed: " + e.getMessage());
+        }
+
+        System.out.printf("Warm-up ran %d transfers of %d files, %d failed\n", done + failed, names.size(), failed);
+
+        // The client is done once the last block arrives, the server side still records the transfer after the
+        // final ACK. An ACK that got lost is waited for until the retransmissions run out.
+        long deadline = System.currentTimeMillis() + (long) config.waitingLimit * (config.maximumRetries + 2);
+        while (activeTransfers.get() > 0 && System.currentTimeMillis() < deadline)
         {
+            try
+            {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        totalTransfers.set(0);
+        failedTransfers.set(0);
+        refusedTransfers.set(0);
+        totalBytes.set(0);
+        totalRetransmits.set(0);
+    }
 
-            final InetSocketAddress clientAddress = receiveFrom(socket, buf);
+    /**
+     * Receives requests on a socket and starts a thread for each of them, until the socket is closed
+     * @param socket socket bound to the port to serve
+     * @param rateLimiter limits the invalid packets answered per host, null for no limit
+     */
+    private void listen(DatagramSocket socket, SourceRateLimiter rateLimiter)
+    {
+        byte[] buf= new byte[BUFSIZE];
+        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        DatagramPacket reply = new DatagramPacket(new byte[0], 0); // Reused for the rejections sent inline
 
-            // If clientAddress is null, an error occurred in receiveFrom()
-            if (clientAddress == null)
+        // Loop to handle client requests
+        while (!socket.isClosed())
+        {
+            // If receive() fails, an error occurred or the socket was closed
+            if (!receive(socket, dp))
                 continue;
 
-            System.out.printf("\n***** Request from %s using port %d *****\n", clientAddress.getHostName(), clientAddress.getPort());
+            // Anything but a well-formed request is answered right here with a prepared error-packet, without a
+            // thread or socket of its own, so a flood of junk can't turn into a flood of threads. Packets that
+            // aren't requests are told apart by their opcode alone, before anything is allocated for them.
+            int opcode = dp.getLength() < 2 ? OP_MALFORMED : ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+            if (opcode == OP_ERR)
+            {
+                // Error-packets are never answered, not even with an error
+                rejectedPackets.incrementAndGet();
+                continue;
+            }
+            else if (opcode == OP_ACK || opcode == OP_DAT)
+            {
+                reject(socket, dp, reply, ERR_PACKET_UNKNOWN_TRANSFER_ID, rateLimiter);
+                continue;
+            }
+            else if (opcode != OP_RRQ && opcode != OP_WRQ)
+            {
+                reject(socket, dp, reply, ERR_PACKET_ILLEGAL_OPERATION, rateLimiter);
+                continue;
+            }
 
             final StringBuffer requestedFile= new StringBuffer();
-            StringBuffer mode = new StringBuffer(); //used for storing mode of the current request
-            final int reqtype = ParseRQ(buf, requestedFile, mode);
+            final StringBuffer mode = new StringBuffer(); //used for storing mode of the current request
+            final TransferOptions options = new TransferOptions(); //options appended to the request, if any
+            final int reqtype = ParseRQ(buf, dp.getLength(), requestedFile, mode, options);
+
+            if (reqtype != OP_RRQ && reqtype != OP_WRQ)
+            {
+                reject(socket, dp, reply, ERR_PACKET_ILLEGAL_OPERATION, rateLimiter);
+                continue;
+            }
+            else if (!mode.toString().equals(MODE_OCTET) && !mode.toString().equals(MODE_NETASCII))
+            {
+                reject(socket, dp, reply, ERR_PACKET_INVALID_MODE, rateLimiter);
+                continue;
+            }
+
+            final InetSocketAddress clientAddress = new InetSocketAddress(dp.getAddress(), dp.getPort());
+            System.out.printf("\n***** Request from %s using port %d *****\n", clientAddress.getHostName(), clientAddress.getPort());
 
             new Thread()
             {
                 public void run()
                 {
-                    try
+                    // The socket is closed however the transfer ends, including unexpected exceptions
+                    try (DatagramSocket sendSocket= new DatagramSocket(0))
                     {
-                        DatagramSocket sendSocket= new DatagramSocket(0);
-
                         // Connect to client
                         sendSocket.connect(clientAddress);
 
-
-                        // Read request
-                        if (reqtype == OP_RRQ)
-                        {
-                            //check if mode is ok
-                            if (!mode.toString().equals("octet"))
-                            {
-                                System.out.println("Invalid mode of operation. Sending an error packet.");
-                                send_ERR(sendSocket, ERR_NOT_DEFINED, "Invalid mode of operation. The only supported mode is octet.");
-                            }
-                            else
-                            {
-                                requestedFile.insert(0, READDIR);
-                                HandleRQ(sendSocket, requestedFile.toString(), OP_RRQ);
-                                //send_ERR(sendSocket, ERR_DISK_FULL);
-                            }
-                        }
-                        // Write request
-                        else if (reqtype == OP_WRQ)
-                        {
-                            //check if mode is ok
-                            if (!mode.toString().equals("octet"))
-                            {
-                                System.out.println("Invalid mode of operation. Sending an error packet.");
-                                send_ERR(sendSocket, ERR_NOT_DEFINED, "Invalid mode of operation. The only supported mode is octet.");
-                            }
-                            else
-                            {
-                                requestedFile.insert(0, WRITEDIR);
-                                HandleRQ(sendSocket, requestedFile.toString(), OP_WRQ);
-                            }
-                        }
-                        // In case of Data or ACK received on a non-established connection
-                        else if (reqtype == OP_ACK || reqtype == OP_DAT)
-                        {
-                            System.out.println("Unknown transfer ID. Sending an error packet.");
-                            send_ERR(sendSocket, ERR_UNKNOWN_TRANSFER_ID);
-                        }
-                        // In case of error message, we don't send anything back.
-                        else if (reqtype == OP_ERR)
-                        {
-                            // Debug
-                            System.out.println("Error-package received from client with non-established connection. " +
-                                    "Discarding packet and connection.");
-                        }
-                        // For all other requests, consider them as illegal
-                        else
-                        {
-                            System.out.println("Invalid request from client. Sending an error packet.");
-                            send_ERR(sendSocket, ERR_ILLEGAL_OPERATION);
-                        }
-
-                        sendSocket.close();
+                        HandleRQ(sendSocket, requestedFile.toString(), reqtype, mode.toString(), options);
                     }
                     catch (SocketException e)
                     {e.printStackTrace();}
@@ -166,50 +582,95 @@ public class TFTPServer
         }
     }
 
+    /**
+     * Answers a packet on the request port that doesn't start a transfer with a prepared error-packet. Only
+     * rejections are charged to the source host, a host over its rate gets no answer.
+     * @param socket socket bound to the request port
+     * @param dp the rejected packet
+     * @param reply packet reused for the answers
+     * @param rejection prepared error-packet to send
+     * @param rateLimiter limits the invalid packets answered per host, null for no limit
+     */
+    private void reject(DatagramSocket socket, DatagramPacket dp, DatagramPacket reply, byte[] rejection,
+                        SourceRateLimiter rateLimiter)
+    {
+        rejectedPackets.incrementAndGet();
+
+        if (rateLimiter != null && !rateLimiter.tryAcquire(dp.getAddress()))
+        {
+            rateLimitedPackets.incrementAndGet();
+            return;
+        }
+
+        reply.setData(rejection);
+        reply.setAddress(dp.getAddress());
+        reply.setPort(dp.getPort());
+        try
+        {
+            socket.send(reply);
+        }
+        catch (IOException e)
+        {
+            // The client can't be reached, nothing else to do for a rejected packet
+        }
+        TransferEvents.rejected(dp.getAddress(), dp.getPort(), rejection[3],
+                rejection == ERR_PACKET_INVALID_MODE ? INVALID_MODE_MESSAGE : ERROR_MESSAGES[rejection[3]]);
+    }
+
     /**
      * Reads the first block of data, i.e., the request for an action (read or write).
      * @param socket (socket to read from)
-     * @param buf (where to store the read data)
-     * @return socketAddress (the socket address of the client)
+     * @param dp (packet to receive into, its length and source address describe the received packet)
+     * @return true if a packet was received, false if an error occurred
      */
-    private InetSocketAddress receiveFrom(DatagramSocket socket, byte[] buf)
+    private boolean receive(DatagramSocket socket, DatagramPacket dp)
     {
-        // Create datagram packet
-        DatagramPacket dp = new DatagramPacket(buf, buf.length);
+        // Reset the length, receive() shrinks it to the size of the last packet
+        dp.setLength(dp.getData().length);
 
         // Receive packet
         try {
             socket.receive(dp);
         } catch (IOException e) {
-            e.printStackTrace();
+            if (!socket.isClosed())
+                e.printStackTrace();
+            return false;
         }
-        // Get client address and port from the packet
-
-        return new InetSocketAddress(dp.getAddress(), dp.getPort());
+        return true;
     }
 
     /**
      * Parses the request in buf to retrieve the type of request and requestedFile
      *
      * @param buf (received request)
+     * @param length (number of bytes received into buf)
      * @param requestedFile (name of file to read/write)
      * @param mode (mode of the request)
-     * @return opcode (request type: RRQ or WRQ)
+     * @param options (where to store the options appended to the request, RFC 2347)
+     * @return opcode (request type: RRQ or WRQ, the bare opcode of other packets, OP_MALFORMED for broken ones)
      */
-    private int ParseRQ(byte[] buf, StringBuffer requestedFile, StringBuffer mode)
+    private int ParseRQ(byte[] buf, int length, StringBuffer requestedFile, StringBuffer mode, TransferOptions options)
     {
         // See "TFTP Formats" in TFTP specification for the RRQ/WRQ request contents
 
-        ByteBuffer wrap= ByteBuffer.wrap(buf);
-        short opcode = wrap.getShort();
+        if (length < 2)
+            return OP_MALFORMED;
+
+        int opcode = ((buf[0] & 0xff) << 8) | (buf[1] & 0xff);
+
+        // Only requests are parsed any further, everything else is rejected on its opcode
+        if (opcode != OP_RRQ && opcode != OP_WRQ)
+            return opcode;
 
         // We can now parse the request message for opcode and requested file as:
 
         int readBytes = 2;// where readBytes is the number of bytes read into the byte array buf.
 
-        //filename is followed by 1 byte of 0s
-        while (buf[readBytes] != 0)
+        //filename is followed by 1 byte of 0s, which has to be inside the packet
+        while (readBytes < length && buf[readBytes] != 0)
             readBytes ++;
+        if (readBytes >= length || readBytes == 2)
+            return OP_MALFORMED;
 
         String fileName = new String(buf, 2, readBytes-2);  //converts readBytes to the length of the filename
 
@@ -221,14 +682,40 @@ public class TFTPServer
         int offset = readBytes; //save the offset for mode
 
         //mode is followed by 1 byte of 0s
-        while (buf[readBytes] != 0)
+        while (readBytes < length && buf[readBytes] != 0)
             readBytes ++;
+        if (readBytes >= length)
+            return OP_MALFORMED;
 
         //readBytes - offset give length of the mode; saving the mode in lower case for convenience
         mode.append(new String(buf, offset, readBytes - offset).toLowerCase());
+
+        // Options follow the mode as pairs of 0-terminated strings: name, value
+        readBytes ++;
+        while (readBytes < length)
+        {
+            int nameStart = readBytes;
+            while (readBytes < length && buf[readBytes] != 0)
+                readBytes ++;
+            String name = new String(buf, nameStart, readBytes - nameStart);
+
+            readBytes ++;
+            int valueStart = readBytes;
+            while (readBytes < length && buf[readBytes] != 0)
+                readBytes ++;
+
+            // Ignore a trailing option without a terminated value
+            if (readBytes >= length)
+                break;
+
+            options.put(name, new String(buf, valueStart, readBytes - valueStart));
+            readBytes ++;
+        }
+
         System.out.println("OPCODE: " + opcode);
         System.out.println("FILENAME: " + fileName);
         System.out.println("MODE: " + mode);
+        System.out.println("OPTIONS: " + options);
         return opcode;
     }
 
@@ -236,154 +723,222 @@ public class TFTPServer
      * Handles RRQ and WRQ requests
      *
      * @param sendSocket (socket used to send/receive packets)
-     * @param requestedFile (name of file to read/write)
+     * @param requestedFile (name of file to read/write, relative to the read or write folder)
      * @param opcode (RRQ or WRQ)
+     * @param mode (octet or netascii)
+     * @param options (options appended to the request)
      */
-    private void HandleRQ(DatagramSocket sendSocket, String requestedFile, int opcode)
+    private void HandleRQ(DatagramSocket sendSocket, String requestedFile, int opcode, String mode, TransferOptions options)
     {
-        if(opcode == OP_RRQ)
+        // Refuse the transfer while draining, or when too many are running already
+        String refusal = null;
+        if (draining)
         {
-            // See "TFTP Formats" in TFTP specification for the DATA and ACK packet contents
-            boolean result = send_DATA_receive_ACK(sendSocket, requestedFile);
-            System.out.println("SENT SUCCESSFULLY: " + result);
+            refusal = "Server is draining, try again later.";
+        }
+        else if (activeTransfers.incrementAndGet() > config.maxTransfers)
+        {
+            activeTransfers.decrementAndGet();
+            refusal = "Server busy, try again later.";
         }
 
-        else if (opcode == OP_WRQ)
+        if (refusal != null)
         {
-            boolean result = receive_DATA_send_ACK(sendSocket, requestedFile);
-            System.out.println("RECEIVED SUCCESSFULLY: " + result);
+            System.out.println(refusal + " Sending an error packet.");
+            refusedTransfers.incrementAndGet();
+            send_ERR(sendSocket, ERR_NOT_DEFINED, refusal);
+            return;
         }
-    }
 
-    /**
-     * Received data from client and sends ACK-packets back.
-     * @param socket socket used for client communication
-     * @param requestedFile filename for specific file
+        try
+        {
+            HandleTransfer(sendSocket, requestedFile, opcode, mode, options);
+        }
+        finally
+        {
+            if (activeTransfers.decrementAndGet() == 0 && draining)
+            {
+                System.out.println("Drained, no transfers running.");
+            }
+        }
+    }
+
+    /**
+     * Runs an admitted RRQ or WRQ transfer and records it
+     *
+     * @param sendSocket (socket used to send/receive packets)
+     * @param requestedFile (name of file to read/write, relative to the read or write folder)
+     * @param opcode (RRQ or WRQ)
+     * @param mode (octet or netascii)
+     * @param options (options appended to the request)
+     */
+    private void HandleTransfer(DatagramSocket sendSocket, String requestedFile, int opcode, String mode, TransferOptions options)
+    {
+        TransferStats stats = new TransferStats((InetSocketAddress) sendSocket.getRemoteSocketAddress(),
+                (opcode == OP_RRQ ? config.readDir : config.writeDir) + requestedFile, opcode);
+        TransferEvents.TransferEvent event = TransferEvents.begin(stats);
+
+        // Names reaching outside the folders are rejected without touching the disk
+        if (!ReadIndex.isSafeName(requestedFile))
+        {
+            System.out.println("Requested name is outside the server folders. Sending an error packet.");
+            send_ERR(sendSocket, ERR_ACCESS_VIOLATION);
+        }
+
+        else if(opcode == OP_RRQ)
+        {
+            // Unknown files are answered from the index as well
+            StorageBackend.Entry file = readBackend.lookup(requestedFile);
+            ChunkStore.Manifest stored = file == null && chunkStore != null ? chunkStore.lookup(requestedFile) : null;
+            if (stored != null)
+            {
+                // Uploads kept in the chunk store are streamed from their chunks
+                boolean result = send_stored_DATA_receive_ACK(sendSocket, stored, mode.equals(MODE_NETASCII), options, stats);
+                System.out.println("SENT SUCCESSFULLY: " + result);
+                stats.success = result;
+            }
+            else if (file == null)
+            {
+                System.out.println("File not found on server!");
+                send_ERR(sendSocket, ERR_FILE_NOT_FOUND);
+            }
+            else
+            {
+                // See "TFTP Formats" in TFTP specification for the DATA and ACK packet contents
+                boolean result = send_DATA_receive_ACK(sendSocket, file, mode.equals(MODE_NETASCII), options, stats);
+                System.out.println("SENT SUCCESSFULLY: " + result);
+                stats.success = result;
+            }
+        }
+
+        else if (opcode == OP_WRQ)
+        {
+            boolean result = receive_DATA_send_ACK(sendSocket, config.writeDir + requestedFile, mode.equals(MODE_NETASCII), options, stats);
+            System.out.println("RECEIVED SUCCESSFULLY: " + result);
+            stats.success = result;
+        }
+
+        TransferEvents.end(event, stats);
+        totalTransfers.incrementAndGet();
+        if (!stats.success)
+            failedTransfers.incrementAndGet();
+        totalBytes.addAndGet(stats.bytes);
+        totalRetransmits.addAndGet(stats.retransmits);
+
+        if (auditLog != null)
+        {
+            auditLog.append(stats);
+        }
+    }
+
+    /**
+     * Received data from client and sends ACK-packets back.
+     * @param socket socket used for client communication
+     * @param file index entry of the requested file
+     * @param netascii true if the file should be sent in netascii mode
+     * @param options options appended to the request
+     * @param stats counters of the transfer
      * @return true if file is received succesfully, false otherwise
      */
-    private boolean send_DATA_receive_ACK(DatagramSocket socket, String requestedFile)
+    private boolean send_DATA_receive_ACK(DatagramSocket socket, StorageBackend.Entry file, boolean netascii, TransferOptions options, TransferStats stats)
     {
+        BlockSource source = null;
+
         try {
-            //form the packet to send
-            int  filePointer = 0,
-                    packetPointer,
-                    port = socket.getPort(),
-                    bytesLeft; //amount of bytes left to read from file
-            InetAddress ip = socket.getInetAddress();
-
-            //
-            byte[] file = Files.readAllBytes(Paths.get(requestedFile).normalize()),
-                    packet,
-                    block = new byte[2];
-            DatagramPacket sendPacket;
-            ByteBuffer wrap= ByteBuffer.wrap(block);
-            short blockNumber = wrap.getShort();
-
-            //if the last portion of data is exactly 512 bytes, we will need to send an empty packet to ensure  proper connection termination
-            boolean needEmpty = false;
-            while (filePointer < file.length || needEmpty) {
-
-                bytesLeft = file.length - filePointer;
-
-                //check if the package is the final one
-                if(bytesLeft < 512)
-                    packet = new byte[bytesLeft + 4]; //+4 for the header
-
-                    //check if the packet is the final one AND it's exactly 512 bytes ling
-                else if (bytesLeft == 512){
-                    packet = new byte[516];
-                    needEmpty = true;
-                }
+            long fileSize = file.size();
 
-                else
-                    packet = new byte [516]; //otherwise set size to max
-
-                //set opcode
-                packet[0] = 0;
-                packet[1] = OP_DAT;
-
-                //set block number
-                blockNumber++;
-                packet[2] = (byte)((blockNumber >> 8) & 0xff);
-                packet[3] = (byte)(blockNumber & 0xff);
-
-                //copy as much as possible from file into the packet
-                if (filePointer < file.length) {
-                    for (packetPointer = 4; packetPointer < packet.length; packetPointer++) {
-                        packet[packetPointer] = file[filePointer];
-                        filePointer++;
-                    }
-                }
-                //if this packet must be empty, disable the flag so we don't get stuck in infinite loop
-                else
-                    needEmpty = false;
+            // A restarted read starts at the requested offset, block numbers still start at 1
+            long offset = requestedOffset(options);
 
-                sendPacket = new DatagramPacket(packet, packet.length, ip, port);
-                socket.send(sendPacket); //send
+            // Checksums are computed once per version of the file and kept by the backend. If the client asks for
+            // them they're needed before the transfer, otherwise they're computed as the blocks are sent.
+            IntegrityIndex.Entry checksums = file.checksums();
+            if (checksums == null && (options.has(TransferOptions.OPT_SHA256) || options.has(TransferOptions.OPT_CRC32C)))
+            {
+                checksums = file.computeChecksums();
+            }
 
-                // Counter keeping track of retransmission tries
-                int reTransmitCounter = 0;
+            // Send a compressed variant if the client supports it and the backend has one worth sending. Variants
+            // are cached by the backend, so each file is only compressed once.
+            byte[] variant = null;
+            String codec = netascii ? null : Compressor.choose(options.get(TransferOptions.OPT_COMPRESS));
+            if (codec != null)
+            {
+                variant = file.variant(codec);
+                if (variant != null)
+                    options.accept(TransferOptions.OPT_COMPRESS, codec);
+            }
 
-                boolean correctBn = false;
-                boolean maxRetries = false;
+            // In netascii mode the file is sent from a cached transcoded variant if the backend has one, otherwise
+            // it's transcoded block by block as it's sent
+            if (netascii)
+            {
+                variant = file.variant(StorageBackend.NETASCII);
+            }
 
-                // Do retransmissions as needed.
-                while (!correctBn && !maxRetries)
-                {
-                    try
-                    {
-                        short bn = receive_ACK(socket);
+            // The offset of a restarted read refers to the data actually sent
+            long sendSize = variant != null ? variant.length
+                    : netascii && (offset > 0 || options.has(TransferOptions.OPT_TSIZE)) ? file.netasciiSize()
+                    : fileSize;
+            if (offset < 0 || offset > sendSize)
+            {
+                System.out.println("Invalid restart offset requested. Sending an error packet.");
+                send_ERR(socket, ERR_OPTION_NEGOTIATION);
+                return false;
+            }
 
-                        if (bn == blockNumber)
-                        {
-                            correctBn = true;
-                        }
-                        else
-                        {
-                            System.out.println("INCORRECT ACK NUMBER RECEIVED.");
-                        }
-                    }
-                    // In case of error-packet from client, we stop transmitting immediately. In all other cases, we try
-                    // Retransmission
-                    catch (InterruptedException e)
-                    {
-                        throw new InterruptedException(e.getMessage());
-                    }
-                    catch (Exception e)
-                    {
-                        // In case of any problems with receiving ACK, print exception message for debugging purposes
-                        System.out.println(e.getMessage());
-                    }
+            if (options.has(TransferOptions.OPT_BLOCK) || options.has(TransferOptions.OPT_OFFSET))
+            {
+                options.accept(TransferOptions.OPT_OFFSET, Long.toString(offset));
+            }
 
-                    if (!correctBn)
-                    {
-                        // Check if max retries has been reached
-                        if (reTransmitCounter == MAXIMUM_RETRIES)
-                        {
-                            maxRetries = true;
-                        }
-                        else
-                        {
-                            // Re-transmit
-                            reTransmitCounter++;
-                            System.out.println("RETRANSMITTING BLOCK: " + blockNumber);
-                            socket.send(sendPacket); //send
-                        }
-                    }
-                }
+            if (options.has(TransferOptions.OPT_TSIZE))
+            {
+                options.accept(TransferOptions.OPT_TSIZE, Long.toString(sendSize));
+            }
 
-                // Check if we have failed all transmissions
-                if (!correctBn)
-                {
-                    // Send Error-packet before terminating
-                    send_ERR(socket, ERR_NOT_DEFINED, "Maximum number of retransmissions reached.");
+            // Making a variant may have computed the checksums
+            if (checksums == null && variant != null)
+                checksums = file.checksums();
+            IntegrityIndex.Checksum checksum = checksums == null && variant == null && offset == 0 && !netascii
+                    ? new IntegrityIndex.Checksum() : null;
 
-                    // For debugging purposes
-                    System.out.println("Maximum number of retransmissions reached. Giving up, closing connection.");
+            if (options.has(TransferOptions.OPT_SHA256))
+                options.accept(TransferOptions.OPT_SHA256, checksums.sha256Hex());
+            if (options.has(TransferOptions.OPT_CRC32C))
+                options.accept(TransferOptions.OPT_CRC32C, checksums.crc32cHex());
 
-                    return false;
-                }
+            // Start reading ahead, so the first blocks are ready once the options are acknowledged
+            if (variant != null)
+            {
+                source = new ByteArraySource(variant, offset);
+            }
+            else if (netascii)
+            {
+                // The offset refers to the transcoded data, so transcode from the start and skip ahead
+                source = new Netascii.Source(file.open(0));
+                skip(source, offset);
+            }
+            else
+            {
+                source = file.open(offset);
+            }
 
+            // Acknowledge the options before sending any data
+            if (options.hasAccepted() && !send_OACK_receive_ACK(socket, options, stats))
+            {
+                return false;
+            }
+
+            if (!send_blocks(socket, source, checksum, stats))
+            {
+                return false;
+            }
+
+            // Offer the checksums to the backend, it keeps them if the whole (unchanged) file was sent
+            if (checksum != null)
+            {
+                file.checksummed(checksum);
             }
         }
         catch (InterruptedException e)
@@ -402,24 +957,343 @@ public class TFTPServer
             e.printStackTrace();
             return false;
         }
+        finally
+        {
+            try
+            {
+                if (source != null)
+                    source.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sends a file kept in the chunk store, streaming it chunk by chunk
+     * @param socket socket used for client communication
+     * @param manifest manifest of the stored file
+     * @param netascii true if the file should be sent in netascii mode
+     * @param options options requested by the client, the accepted ones are sent in an OACK
+     * @param stats counters of the transfer
+     * @return true if the file was sent successfully, false otherwise
+     */
+    private boolean send_stored_DATA_receive_ACK(DatagramSocket socket, ChunkStore.Manifest manifest, boolean netascii,
+                                                 TransferOptions options, TransferStats stats)
+    {
+        BlockSource source = null;
+
+        try
+        {
+            // The size of transcoded data isn't known without reading the chunks, so the offset is only bounded
+            long offset = requestedOffset(options);
+            if (offset < 0 || offset > (netascii ? 2 * manifest.size : manifest.size))
+            {
+                System.out.println("Invalid restart offset requested. Sending an error packet.");
+                send_ERR(socket, ERR_OPTION_NEGOTIATION);
+                return false;
+            }
+
+            if (options.has(TransferOptions.OPT_BLOCK) || options.has(TransferOptions.OPT_OFFSET))
+                options.accept(TransferOptions.OPT_OFFSET, Long.toString(offset));
+            if (options.has(TransferOptions.OPT_TSIZE) && !netascii)
+                options.accept(TransferOptions.OPT_TSIZE, Long.toString(manifest.size));
+            if (options.has(TransferOptions.OPT_SHA256))
+                options.accept(TransferOptions.OPT_SHA256, manifest.sha256);
+
+            if (netascii)
+            {
+                source = new Netascii.Source(chunkStore.open(manifest, 0));
+                skip(source, offset);
+            }
+            else
+            {
+                source = chunkStore.open(manifest, offset);
+            }
+
+            if (options.hasAccepted() && !send_OACK_receive_ACK(socket, options, stats))
+            {
+                return false;
+            }
+            return send_blocks(socket, source, null, stats);
+        }
+        catch (InterruptedException e)
+        {
+            // In case of error-packet received from client in the middle of the transfer
+            System.out.println(e.getMessage());
+            return false;
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            send_ERR(socket, ERR_NOT_DEFINED, "Stored file could not be read.");
+            return false;
+        }
+        finally
+        {
+            try
+            {
+                if (source != null)
+                    source.close();
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Sends the blocks of a read request in lock-step, each block is sent again until it's acknowledged
+     * @param socket socket used for client communication
+     * @param source data to send
+     * @param checksum updated with the data sent, null if not needed
+     * @param stats counters of the transfer
+     * @return true if every block was acknowledged, false if the retransmissions ran out
+     * @throws IOException if the data can't be read or sent
+     * @throws InterruptedException if the client sent an error-packet
+     */
+    private boolean send_blocks(DatagramSocket socket, BlockSource source, IntegrityIndex.Checksum checksum,
+                                TransferStats stats) throws IOException, InterruptedException
+    {
+        //form the packet to send
+        int  port = socket.getPort(),
+                length; //amount of bytes in the current block
+        InetAddress ip = socket.getInetAddress();
+        byte[] packet = new byte[516]; //reused for every block, the ACK arrives before the next block is copied in
+        DatagramPacket sendPacket;
+        short blockNumber = 0;
+        long sequence = 0; //block number without the 16-bit wrap, used for reporting
+
+        //a block shorter than 512 bytes ends the transfer. if the file ends exactly on a block boundary (or is
+        //empty), the last block will be an empty one to ensure proper connection termination
+        boolean lastBlock = false;
+        while (!lastBlock) {
+
+            length = source.nextBlock(packet, 4, 512);
+            lastBlock = length < 512;
+
+            if (checksum != null)
+                checksum.update(packet, 4, length);
+
+            //set opcode
+            packet[0] = 0;
+            packet[1] = OP_DAT;
+
+            //set block number
+            blockNumber++;
+            sequence++;
+            packet[2] = (byte)((blockNumber >> 8) & 0xff);
+            packet[3] = (byte)(blockNumber & 0xff);
+
+            sendPacket = new DatagramPacket(packet, length + 4, ip, port);
+            socket.send(sendPacket); //send
+
+            // Counter keeping track of retransmission tries
+            int reTransmitCounter = 0;
+
+            boolean correctBn = false;
+            boolean maxRetries = false;
+
+            // Do retransmissions as needed.
+            while (!correctBn && !maxRetries)
+            {
+                try
+                {
+                    short bn = receive_ACK(socket, sequence);
+
+                    if (bn == blockNumber)
+                    {
+                        correctBn = true;
+                        stats.bytes += length;
+                    }
+                    else
+                    {
+                        System.out.println("INCORRECT ACK NUMBER RECEIVED.");
+                    }
+                }
+                // In case of error-packet from client, we stop transmitting immediately. In all other cases, we try
+                // Retransmission
+                catch (InterruptedException e)
+                {
+                    throw new InterruptedException(e.getMessage());
+                }
+                catch (Exception e)
+                {
+                    // In case of any problems with receiving ACK, print exception message for debugging purposes
+                    System.out.println(e.getMessage());
+                }
+
+                if (!correctBn)
+                {
+                    // Check if max retries has been reached
+                    if (reTransmitCounter >= config.maximumRetries)
+                    {
+                        maxRetries = true;
+                    }
+                    else
+                    {
+                        // Re-transmit
+                        reTransmitCounter++;
+                        stats.retransmits++;
+                        TransferEvents.retransmit(sequence, length);
+                        System.out.println("RETRANSMITTING BLOCK: " + blockNumber);
+                        socket.send(sendPacket); //send
+                    }
+                }
+            }
+
+            // Check if we have failed all transmissions
+            if (!correctBn)
+            {
+                // Send Error-packet before terminating
+                send_ERR(socket, ERR_NOT_DEFINED, "Maximum number of retransmissions reached.");
+
+                // For debugging purposes
+                System.out.println("Maximum number of retransmissions reached. Giving up, closing connection.");
+
+                return false;
+            }
+
+        }
+        return true;
+    }
+
+    /**
+     * Parses the restart position of a read request
+     * @param options options of the request
+     * @return offset to start at, -1 if the option is invalid
+     */
+    private long requestedOffset(TransferOptions options)
+    {
+        try
+        {
+            return options.has(TransferOptions.OPT_BLOCK)
+                    ? (options.getLong(TransferOptions.OPT_BLOCK, 1) - 1) * 512
+                    : options.getLong(TransferOptions.OPT_OFFSET, 0);
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Skips the start of a source whose data can't be skipped directly, e.g. transcoded data
+     * @param source source to skip in
+     * @param bytes number of bytes to skip
+     * @throws IOException if the data can't be read
+     */
+    private void skip(BlockSource source, long bytes) throws IOException
+    {
+        byte[] scratch = new byte[512];
+        for (long left = bytes; left > 0; left -= 512)
+        {
+            if (source.nextBlock(scratch, 0, (int) Math.min(512, left)) < Math.min(512, left))
+                break;
+        }
+    }
+
+    /**
+     * Sends an OACK-packet for the accepted options and waits for the client to acknowledge it with ACK 0.
+     * Used for read requests, for write requests the OACK replaces the initial ACK.
+     * @param socket socket used for client communication
+     * @param options options with the accepted values
+     * @param stats counters of the transfer
+     * @return true if the client acknowledged the options, false otherwise
+     */
+    private boolean send_OACK_receive_ACK(DatagramSocket socket, TransferOptions options, TransferStats stats)
+    {
+        byte[] oack = options.toOACK(OP_OACK);
+        DatagramPacket oackPacket = new DatagramPacket(oack, oack.length, socket.getInetAddress(), socket.getPort());
+
+        try
+        {
+            socket.send(oackPacket);
+
+            // Counter keeping track of retransmission tries
+            int reTransmitCounter = 0;
+
+            while (true)
+            {
+                try
+                {
+                    if (receive_ACK(socket, 0) == 0)
+                    {
+                        return true;
+                    }
+                    System.out.println("INCORRECT ACK NUMBER RECEIVED.");
+                }
+                catch (InterruptedException e)
+                {
+                    // Client refused the options
+                    System.out.println(e.getMessage());
+                    return false;
+                }
+                catch (IOException e)
+                {
+                    System.out.println(e.getMessage());
+                }
+
+                if (reTransmitCounter >= config.maximumRetries)
+                {
+                    send_ERR(socket, ERR_NOT_DEFINED, "Maximum number of retransmissions reached.");
+                    System.out.println("Options never acknowledged. Giving up, closing connection.");
+                    return false;
+                }
+
+                reTransmitCounter++;
+                stats.retransmits++;
+                TransferEvents.retransmit(0, 0);
+                System.out.println("RETRANSMITTING OACK");
+                socket.send(oackPacket);
+            }
+        }
+        catch (IOException e)
+        {
+            e.printStackTrace();
+            return false;
+        }
+    }
+
+    /**
+     * Tells the client that its upload was stored as a duplicate and no data has to be sent. The file is already
+     * stored, so the OACK is retransmitted until the client has seen it, i.e., answers with ACK 0 or an error.
+     * Otherwise a lost OACK would leave the client retrying a file that now exists.
+     * @param socket socket used for client communication
+     * @param options options with the accepted values
+     * @param stats counters of the transfer
+     * @return true, the file is stored whether or not the client confirmed it
+     */
+    private boolean send_dedup_OACK(DatagramSocket socket, TransferOptions options, TransferStats stats)
+    {
+        options.accept(TransferOptions.OPT_DEDUP, "1");
+        if (!send_OACK_receive_ACK(socket, options, stats))
+        {
+            System.out.println("Duplicate upload stored, but not confirmed by the client.");
+        }
         return true;
     }
 
     /**
      * Help-method to extract a block-number from a ACK-packet. Use this method when sending packets and an ACK is expected.
      * @param socket socket used for client communication
+     * @param expectedBlock sequence number of the block waited for, only used for reporting
      * @return blocknumber
      * @throws IOException in case of incorrect package type, package timeout or IO-error
      * @throws InterruptedException if the packet is an error-message
      */
-    private short receive_ACK(DatagramSocket socket) throws IOException, InterruptedException {
+    private short receive_ACK(DatagramSocket socket, long expectedBlock) throws IOException, InterruptedException {
 
-        byte[] ACKbuf = new byte[4]; //ACK packet is 4 bytes long (RFC1350)
+        byte[] ACKbuf = new byte[BUFSIZE]; //ACK packet is 4 bytes long (RFC1350), but an error-packet may be longer
         DatagramPacket receivePacket = new DatagramPacket(ACKbuf, ACKbuf.length);
         try {
 
             // Set timeout limit so we don't wait until forever.
-            socket.setSoTimeout(WAITING_LIMIT);
+            socket.setSoTimeout(config.waitingLimit);
             socket.receive(receivePacket);
 
             byte[] ACK = receivePacket.getData();
@@ -433,196 +1307,426 @@ public class TFTPServer
             }
             else if (opcode == OP_ERR)
             {
+                TransferEvents.error((InetSocketAddress) socket.getRemoteSocketAddress(), false, blockNumber,
+                        errorMessageOf(receivePacket));
                 throw new InterruptedException("ERROR-MESSAGE RECEIVED FROM CLIENT, CLOSING CONNECTION.");
             }
             else
             {
-                throw new InvalidDataException("RECEIVED PACKET NOT OF TYPE ACK");
+                throw new InvalidDataException("RECEIVED PACKET NOT OF TYPE ACK");
+            }
+
+        }
+        catch (SocketTimeoutException e) {
+            TransferEvents.timeout(expectedBlock);
+            throw new SocketTimeoutException("NO ACK RECEIVED WITHIN REASONABLE TIME");
+        }
+        catch (IOException e) {
+            throw new IOException("CONNECTION PROBLEM");
+        }
+
+    }
+
+    /**
+     * Sends ACK to establish "connection", receives packets and sends ACKs.
+     * Data is appended to a partial file as it arrives and the partial file is moved into place once the
+     * transfer is complete. If the client supplied a token, an interrupted upload is kept and resumed when the
+     * client reconnects with the same filename and token, until it's swept for its age (partial.max.age.s).
+     * @param socket - Datagram socket
+     * @param requestedFile - name of the file that will be saved
+     * @param netascii - true if the file is sent in netascii mode
+     * @param options - options appended to the request
+     * @param stats - counters of the transfer
+     * @return - returns false if IOException is thrown, otherwise returns true
+     */
+    private boolean receive_DATA_send_ACK(DatagramSocket socket, String requestedFile, boolean netascii, TransferOptions options, TransferStats stats){
+
+        byte[] packet, //packet array
+                ACK = new byte[4]; //ACKnowledgement array
+        short currentBN = 0, //block number of the last received packet
+                incomingBN; //block number of the incoming packet
+        long totalBytes = 0; //total amount of bytes stored, including data kept from an interrupted upload
+
+        Path partialPath = null; //file the data is written to until the transfer is complete
+        FileOutputStream fos = null;
+        boolean keepPartial = false; //resumable uploads keep their partial file if the transfer fails
+        boolean stored = false;
+        IntegrityIndex.Checksum checksum = new IntegrityIndex.Checksum(); //checksums of all data stored so far
+
+        //send an acknowledgement to establish connection
+
+        //set opcode
+        ACK[0] = 0;
+        ACK[1] = OP_ACK;
+
+        //set block number
+        ACK[2] = (byte)((currentBN >> 8) & 0xff);
+        ACK[3] = (byte)(currentBN & 0xff);
+
+        DatagramPacket receivePacket = null,
+                ackPacket = new DatagramPacket(ACK, ACK.length, socket.getInetAddress(), socket.getPort());
+
+        try {
+
+            Path testFilePath = Paths.get(requestedFile).normalize();
+            String storedName = Paths.get(config.writeDir).normalize().relativize(testFilePath).toString();
+
+            // The chunk store's own folder can't be written to
+            if (chunkStore != null && ChunkStore.isReserved(storedName))
+            {
+                System.out.println("Upload into the chunk store folder refused. Sending an error packet.");
+                send_ERR(socket, ERR_ACCESS_VIOLATION);
+                return false;
+            }
+
+            // First make user user has provided only a filename without directory structure
+            if (Files.exists(testFilePath) || chunkStore != null && chunkStore.lookup(storedName) != null)
+            {
+                throw new FileAlreadyExistsException("File already exists!");
+            }
+            else
+            {
+                // Try to create a file to see that it's possible to write to path.
+                // Will throw Exception if failing, which we catch later
+                Files.createFile(testFilePath);
+
+                // If we could create the file we should delete it before moving on
+                Files.delete(testFilePath);
+
+            }
+
+            String token, expectedSha256;
+            int windowSize;
+            try
+            {
+                // Offsets into a transcoded upload don't match the stored file, so only octet uploads can be resumed
+                token = netascii ? null : options.getToken();
+                expectedSha256 = options.getSha256();
+                windowSize = (int) Math.max(1, Math.min(MAX_WINDOW_SIZE, options.getLong(TransferOptions.OPT_WINDOWSIZE, 1)));
+            }
+            catch (NumberFormatException e)
+            {
+                System.out.println("Invalid option value requested. Sending an error packet.");
+                send_ERR(socket, ERR_OPTION_NEGOTIATION);
+                return false;
+            }
+
+            // With the size known up front, a file that won't fit is refused before any data is sent
+            if (options.has(TransferOptions.OPT_TSIZE))
+            {
+                long tsize;
+                try
+                {
+                    tsize = options.getLong(TransferOptions.OPT_TSIZE, 0);
+                }
+                catch (NumberFormatException e)
+                {
+                    send_ERR(socket, ERR_OPTION_NEGOTIATION);
+                    return false;
+                }
+
+                if (!hasEnoughSpace(tsize))
+                {
+                    throw new SizeLimitExceededException("Not enough disk space for storing file!");
+                }
+                options.accept(TransferOptions.OPT_TSIZE, Long.toString(tsize));
+            }
+
+            if (options.has(TransferOptions.OPT_WINDOWSIZE))
+            {
+                options.accept(TransferOptions.OPT_WINDOWSIZE, Integer.toString(windowSize));
+            }
+
+            if (expectedSha256 != null)
+            {
+                options.accept(TransferOptions.OPT_SHA256, expectedSha256);
+
+                // If we already store a file with that content, reuse it instead of receiving it again
+                Path duplicate = chunkStore == null ? writeIndex.findBySha256(expectedSha256) : null;
+                if (chunkStore != null && chunkStore.link(expectedSha256, storedName))
+                {
+                    System.out.println("Upload is a duplicate of a stored file, skipping transfer.");
+                    return send_dedup_OACK(socket, options, stats);
+                }
+                if (duplicate != null)
+                {
+                    IntegrityIndex.Entry checksums = writeIndex.get(duplicate);
+                    try
+                    {
+                        // The data of the duplicate is on disk already, only the new name has to be made durable
+                        Files.createLink(testFilePath, duplicate);
+                        try
+                        {
+                            makeDurable(Collections.emptyList(),
+                                    Collections.singletonList(testFilePath.toAbsolutePath().getParent()));
+                        }
+                        catch (IOException | InterruptedException e)
+                        {
+                            Files.deleteIfExists(testFilePath);
+                            throw e;
+                        }
+                    }
+                    catch (FileAlreadyExistsException e)
+                    {
+                        throw e;
+                    }
+                    catch (UnsupportedOperationException | FileSystemException e)
+                    {
+                        // Links aren't supported here. A copy takes up space, unlike a link.
+                        if (!hasEnoughSpace(Files.size(duplicate)))
+                        {
+                            throw new SizeLimitExceededException("Not enough disk space for storing file!");
+                        }
+                        Path copy = Files.createTempFile(testFilePath.getParent(), "." + testFilePath.getFileName(),
+                                PARTIAL_SUFFIX);
+                        try
+                        {
+                            Files.copy(duplicate, copy, StandardCopyOption.REPLACE_EXISTING,
+                                    StandardCopyOption.COPY_ATTRIBUTES);
+                            publish(copy, testFilePath);
+                        }
+                        finally
+                        {
+                            Files.deleteIfExists(copy);
+                        }
+                    }
+                    writeIndex.put(testFilePath, checksums);
+                    System.out.println("Upload is a duplicate of " + duplicate + ", skipping transfer.");
+                    return send_dedup_OACK(socket, options, stats);
+                }
+            }
+
+            if (token != null)
+            {
+                // The partial file is identified by filename and token, so only the same client can resume it.
+                // Only one upload at a time may append to it.
+                Path resumable = Paths.get(requestedFile + "." + token + PARTIAL_SUFFIX).toAbsolutePath().normalize();
+                if (!activePartials.add(resumable))
+                {
+                    System.out.println("Upload with this token is in progress already. Sending an error packet.");
+                    send_ERR(socket, ERR_NOT_DEFINED, "Upload with this token is in progress already.");
+                    return false;
+                }
+                partialPath = resumable;
+                keepPartial = true;
+
+                if (Files.exists(partialPath))
+                {
+                    // Only whole blocks are kept, the client resends everything after them
+                    totalBytes = Files.size(partialPath) / 512 * 512;
+                    System.out.println("Resuming upload at byte " + totalBytes);
+                }
+
+                // Tell the client where to restart, the first DATA-packet is still block 1
+                options.accept(TransferOptions.OPT_TOKEN, token);
+                options.accept(TransferOptions.OPT_OFFSET, Long.toString(totalBytes));
+            }
+            else
+            {
+                partialPath = Files.createTempFile(testFilePath.getParent(), "." + testFilePath.getFileName(), PARTIAL_SUFFIX)
+                        .toAbsolutePath().normalize();
+                activePartials.add(partialPath);
             }
 
-        }
-        catch (SocketTimeoutException e) {
-            throw new SocketTimeoutException("NO ACK RECEIVED WITHIN REASONABLE TIME");
-        }
-        catch (IOException e) {
-            throw new IOException("CONNECTION PROBLEM");
-        }
-
-    }
-
-    /**
-     * Sends ACK to establish "connection", receives packets and sends ACKs
-     * @param socket - Datagram socket
-     * @param requestedFile - name of the file that will be saved
-     * @return - returns false if IOException is thrown, otherwise returns true
-     */
-    private boolean receive_DATA_send_ACK(DatagramSocket socket, String requestedFile){
+            fos = new FileOutputStream(partialPath.toFile(), true);
+            fos.getChannel().truncate(totalBytes);
 
-        byte[] fileBuf = new byte[512], //temporary storage for the file bytes
-                file, //full file bytes
-                packet, //packet array
-                temp, //temporary array, used for increasing the size of fileBuf
-                ACK = new byte[4]; //ACKnowledgement array
-        short currentBN = 0, //block number of the last received packet
-                incomingBN; //block number of the incoming packet
-        int totalBytes = 0; //total amount of bytes read
+            // Data kept from an interrupted upload is part of the checksum as well
+            if (totalBytes > 0)
+            {
+                byte[] buf = new byte[512];
+                try (InputStream in = Files.newInputStream(partialPath))
+                {
+                    for (long left = totalBytes; left > 0; )
+                    {
+                        int read = in.read(buf, 0, (int) Math.min(buf.length, left));
+                        checksum.update(buf, 0, read);
+                        left -= read;
+                    }
+                }
+            }
 
-        //send an acknowledgement to establish connection
+            // If we accepted any options, the OACK takes the place of ACK 0
+            if (options.hasAccepted())
+            {
+                byte[] oack = options.toOACK(OP_OACK);
+                ackPacket = new DatagramPacket(oack, oack.length, socket.getInetAddress(), socket.getPort());
+            }
 
-        //set opcode
-        ACK[0] = 0;
-        ACK[1] = OP_ACK;
+            // With a window (RFC 7440) the client sends up to windowSize blocks before waiting for an ACK. Blocks
+            // that arrive out of order are kept until the gap before them has been filled, and each ACK covers
+            // all blocks received in order so far. A window size of 1 is plain lock-step TFTP.
+            ReassemblyWindow window = new ReassemblyWindow(windowSize, 512);
+            FileOutputStream out = fos;
+            ReassemblyWindow.BlockWriter fileWriter = (buf, off, len) ->
+            {
+                //append the in-order data to the partial file
+                out.write(buf, off, len);
+                checksum.update(buf, off, len);
+            };
 
-        //set block number
-        ACK[2] = (byte)((currentBN >> 8) & 0xff);
-        ACK[3] = (byte)(currentBN & 0xff);
+            // In netascii mode the data is transcoded back to local line endings on its way to the file
+            Netascii.Decoder decoder = netascii ? new Netascii.Decoder(fileWriter) : null;
+            ReassemblyWindow.BlockWriter writer = netascii ? decoder : fileWriter;
 
-        DatagramPacket receivePacket = null,
-                ackPacket = new DatagramPacket(ACK, ACK.length, socket.getInetAddress(), socket.getPort());
+            packet = new byte[516];
+            receivePacket = new DatagramPacket(packet, packet.length);
 
-        try {
+            socket.send(ackPacket); //send ACK (or OACK) packet to establish connection
 
-            Path testFilePath = Paths.get(requestedFile).normalize();
+            long ackedBlocks = 0; //number of blocks covered by the last ACK sent
+            int reTransmitCounter = 0;
 
-            // First make user user has provided only a filename without directory structure
-            if (Files.exists(testFilePath))
-            {
-                throw new FileAlreadyExistsException("File already exists!");
-            }
-            else
+            // Keep receiving and sending ACKs until the last block is in or we run out of retransmission retries
+            while (!window.isComplete())
             {
-                // Try to create a file to see that it's possible to write to path.
-                // Will throw Exception if failing, which we catch later
-                Files.createFile(testFilePath);
+                if (reTransmitCounter > config.maximumRetries)
+                {
+                    throw new DataFormatException("Maximum number of retransmission reached. Aborting.");
+                }
 
-                // If we could create the file we should delete it before moving on
-                Files.delete(testFilePath);
+                try
+                {
+                    //receive packet, the timeout is read again each time as it can be changed while we wait
+                    socket.setSoTimeout(config.waitingLimit);
+                    receivePacket.setLength(packet.length);
+                    socket.receive(receivePacket);
+
+                    //process received packet
+                    ByteBuffer wrap= ByteBuffer.wrap(packet);
+                    short opCode = wrap.getShort();
+                    incomingBN = wrap.getShort();
+
+                    // If the packet is an error-message, we stop executing.
+                    if (opCode == OP_ERR)
+                    {
+                        TransferEvents.error((InetSocketAddress) socket.getRemoteSocketAddress(), false, incomingBN,
+                                errorMessageOf(receivePacket));
+                        throw new InterruptedException("Client sent an error-packet in the middle of transmission, closing connection.");
+                    }
 
-            }
+                    int result = opCode == OP_DAT && receivePacket.getLength() >= 4
+                            ? window.offer(incomingBN & 0xffff, packet, 4, receivePacket.getLength() - 4)
+                            : ReassemblyWindow.OUT_OF_WINDOW;
 
-            boolean transmissionComplete = false;
-            boolean done = false;
+                    if (result == ReassemblyWindow.ACCEPTED)
+                    {
+                        long doneBefore = window.blocksDone();
+                        long bytes = window.drain(writer);
+                        totalBytes += bytes;
+                        stats.bytes += bytes;
 
-            // Keep receiving and sending ACKs until we are done or until connection problems
-            while (!done && !transmissionComplete)
-            {
-                try {
+                        if (window.blocksDone() > doneBefore)
+                            reTransmitCounter = 0;
 
-                    boolean correctDataBlock = false;
-                    int reTransmitCounter = 0;
+                        // The final ACK is sent once the file has been stored
+                        if (window.isComplete())
+                            break;
 
-                    // Keep going until correct datablock has been received or we run out of retransmission retries
-                    while (!correctDataBlock && reTransmitCounter <= MAXIMUM_RETRIES)
-                    {
-                        try
+                        // Acknowledge once a whole window has arrived in order. A gap is only acknowledged when
+                        // the timeout expires, so blocks that merely arrive out of order aren't sent again.
+                        if (window.blocksDone() - ackedBlocks >= windowSize)
                         {
-                            socket.send(ackPacket); //send ACK packet
-
-                            //receive packet
-                            packet = new byte[516]; //reset the packet array
-                            receivePacket = new DatagramPacket(packet, packet.length);
-                            socket.setSoTimeout(WAITING_LIMIT); //set timeout
-                            socket.receive(receivePacket);
-
-                            //process received packet
-                            packet = receivePacket.getData();
-                            ByteBuffer wrap= ByteBuffer.wrap(packet);
-                            short opCode = wrap.getShort();
-                            incomingBN = wrap.getShort();
-
-                            if (opCode == OP_DAT && incomingBN == currentBN + 1) { //check if the bn is ok and that the packet is not empty
-                                currentBN = incomingBN;
-
-                                //copy the contents of the packet into fileBuf
-                                for (int i = 4; i < receivePacket.getLength(); i++) {
-                                    fileBuf[totalBytes] = packet[i];
-                                    totalBytes++;
-                                }
-
-                                //increase the size of filBuf by 512, so next packet data will fit
-                                temp = new byte[fileBuf.length];
-                                System.arraycopy(fileBuf, 0, temp, 0, fileBuf.length);
-                                fileBuf = new byte[totalBytes + 512];
-                                System.arraycopy(temp, 0, fileBuf, 0, totalBytes);
-
-                                //set opcode
-                                ACK[0] = 0;
-                                ACK[1] = OP_ACK;
-
-                                //set block number
-                                ACK[2] = (byte) ((currentBN >> 8) & 0xff);
-                                ACK[3] = (byte) (currentBN & 0xff);
-
-                                // Create ACK-packet
-                                ackPacket = new DatagramPacket(ACK, ACK.length, socket.getInetAddress(), socket.getPort());
-
-                                correctDataBlock = true;
-                            }
-                            else
-                            {
-                                // If the packet is an error-message, we stop executing. Other packet-types are simply discarded
-                                if (opCode == OP_ERR)
-                                {
-                                    //System.err.println("ERROR IN THE MIDDLE OF THE TRANSFER");
-                                    throw new InterruptedException("Client sent an error-packet in the middle of transmission, closing connection.");
-                                }
-                                reTransmitCounter++;
-                                System.out.println("Incorrect Data-block (or wrong packet type) received, resending ACK.");
-                            }
+                            ackedBlocks = window.blocksDone();
+                            ackPacket = createACK(socket, window.ackNumber());
+                            socket.send(ackPacket);
                         }
-                        catch (SocketTimeoutException e)
-                        {
-                            reTransmitCounter++;
-                            if(reTransmitCounter <= MAXIMUM_RETRIES)
-                            {
-                                System.out.println("No new DATA-packet received, resending ACK.");
-                            }
-                        }
-
                     }
-
-                    // If we never got the correct data block, it means we ran out of retries.
-                    if (!correctDataBlock)
+                    else if (result == ReassemblyWindow.DUPLICATE && ackedBlocks > 0
+                            && (incomingBN & 0xffff) == window.ackNumber() && ackedBlocks == window.blocksDone())
                     {
-                        done = true;
+                        // The client resent the block we acknowledged last, so our ACK was probably lost
+                        stats.retransmits++;
+                        TransferEvents.retransmit(ackedBlocks, 0);
+                        socket.send(ackPacket);
                     }
-                    // Check if received packet was the last one.
-                    else if (receivePacket.getLength() < 516)
+                    else if (result == ReassemblyWindow.OUT_OF_WINDOW)
+                    {
+                        reTransmitCounter++;
+                        stats.retransmits++;
+                        TransferEvents.retransmit(ackedBlocks, 0);
+                        System.out.println("Incorrect Data-block (or wrong packet type) received, resending ACK.");
+                        socket.send(ackPacket);
+                    }
+                }
+                catch (SocketTimeoutException e)
+                {
+                    reTransmitCounter++;
+                    TransferEvents.timeout(window.blocksDone() + 1);
+                    if(reTransmitCounter <= config.maximumRetries)
                     {
-                        // No dallying atm
-                        // Make sure we have enough space left in write-folder before sending final ACK.
-                        if (!hasEnoughSpace(totalBytes))
+                        stats.retransmits++;
+                        System.out.println("No new DATA-packet received, resending ACK.");
+
+                        // Acknowledge whatever has arrived in order, so the client resends from there
+                        if (window.blocksDone() > ackedBlocks)
                         {
-                            throw new SizeLimitExceededException("Not enough disk space for storing file!");
+                            ackedBlocks = window.blocksDone();
+                            ackPacket = createACK(socket, window.ackNumber());
                         }
-
-                        socket.send(ackPacket); //send ACK packet
-                        transmissionComplete = true;
+                        TransferEvents.retransmit(ackedBlocks, 0);
+                        socket.send(ackPacket);
                     }
-
-                }
-                catch (IOException e) {
-                    System.out.println("Connection problems, aborting.");
-                    return false;
                 }
             }
 
-            // If we never received all the data from the client, we stop executing.
-            if (!transmissionComplete)
+            if (decoder != null)
             {
-                throw new DataFormatException("Maximum number of retransmission reached. Aborting.");
+                decoder.finish();
             }
 
-            //save file
-            FileOutputStream fos;
+            // No dallying atm
+            // Make sure the write-folder (which already holds the partial file) is within its limit
+            // before sending final ACK. With the chunk store, only the chunks it adds count, checked below.
+            if (chunkStore == null && !hasEnoughSpace(0))
+            {
+                keepPartial = false;
+                throw new SizeLimitExceededException("Not enough disk space for storing file!");
+            }
 
-            //get bytes from fileBuf into file array
-            file = new byte[totalBytes];
-            System.arraycopy(fileBuf,0, file, 0, totalBytes);
+            IntegrityIndex.Entry checksums = checksum.finish(0);
+            if (expectedSha256 != null && !expectedSha256.equals(checksums.sha256Hex()))
+            {
+                keepPartial = false;
+                throw new StreamCorruptedException("Checksum of received file doesn't match!");
+            }
 
-            fos = new FileOutputStream(requestedFile);
-            fos.write(file);
             fos.close();
+            if (chunkStore != null)
+            {
+                // Chunks already stored for other files aren't stored (or charged) again. The partial file is
+                // removed once its chunks are in the store.
+                ChunkStore.Manifest manifest = chunkStore.ingest(partialPath, checksums.sha256Hex());
+                keepPartial = false;
+                if (!hasEnoughSpace(-Files.size(partialPath)))
+                {
+                    chunkStore.discard(manifest);
+                    throw new SizeLimitExceededException("Not enough disk space for storing file!");
+                }
+
+                // Fails if someone else stored a file with the same name meanwhile. With durable writes the chunks
+                // and the manifest are on disk before the file becomes visible.
+                chunkStore.commit(storedName, manifest);
+                System.out.printf("Stored %d bytes in %d chunks, %d bytes of them new\n", manifest.size,
+                        manifest.chunkCount(), manifest.newBytes());
+            }
+            else
+            {
+                //save file, fails if someone else stored a file with the same name meanwhile
+                publish(partialPath, testFilePath);
+                stored = true;
+                writeIndex.put(testFilePath, new IntegrityIndex.Entry(checksums.size,
+                        Files.getLastModifiedTime(testFilePath).toMillis(), checksums.crc32c, checksums.sha256));
+            }
+
+            try
+            {
+                socket.send(createACK(socket, window.ackNumber())); //send final ACK packet
+            }
+            catch (IOException e)
+            {
+                System.out.println("Connection problems, final ACK not sent.");
+            }
 
         }
         catch (InterruptedException e)
@@ -654,6 +1758,14 @@ public class TFTPServer
             send_ERR(socket, ERR_FILE_ALREADY_EXISTS);
             return false;
         }
+        catch (StreamCorruptedException e)
+        {
+            // Debug
+            System.out.println(e.getMessage());
+
+            send_ERR(socket, ERR_NOT_DEFINED, "Checksum mismatch, file discarded.");
+            return false;
+        }
         catch (NoSuchFileException e)
         {
             // Debug
@@ -671,10 +1783,184 @@ public class TFTPServer
             send_ERR(socket, ERR_NO_SUCH_USER);
             return false;
         }
+        finally
+        {
+            // Close the partial file and remove it, unless it's stored or can be resumed later
+            try
+            {
+                if (fos != null)
+                    fos.close();
+                if (!stored && !keepPartial && partialPath != null)
+                    Files.deleteIfExists(partialPath);
+            }
+            catch (IOException e)
+            {
+                e.printStackTrace();
+            }
+            finally
+            {
+                if (partialPath != null)
+                    activePartials.remove(partialPath);
+            }
+        }
 
         return true;
     }
 
+    private void sweepPartialsLoop()
+    {
+        while (true)
+        {
+            if (config.partialMaxAge > 0)
+                sweepPartials(config.partialMaxAge * 1000L);
+
+            try
+            {
+                Thread.sleep(PARTIAL_SWEEP_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Deletes the partial files in the write folder that haven't been written to for a while, unless their upload
+     * is in progress. The chunk store is left alone, it has no partial files.
+     * @param maxAge milliseconds since the last write after which a partial file is deleted
+     */
+    private void sweepPartials(long maxAge)
+    {
+        Path writeFolder = Paths.get(config.writeDir).toAbsolutePath().normalize();
+        Path storeFolder = writeFolder.resolve(ChunkStore.DIRECTORY);
+        long oldest = System.currentTimeMillis() - maxAge;
+
+        try (Stream<Path> files = Files.walk(writeFolder))
+        {
+            for (Path file : (Iterable<Path>) files::iterator)
+            {
+                if (file.startsWith(storeFolder) || !file.getFileName().toString().endsWith(PARTIAL_SUFFIX))
+                    continue;
+
+                // Claimed like an upload would, so it can't be resumed while it's deleted
+                if (!activePartials.add(file))
+                    continue;
+                try
+                {
+                    if (Files.isRegularFile(file) && Files.getLastModifiedTime(file).toMillis() < oldest)
+                    {
+                        Files.deleteIfExists(file);
+                        System.out.println("Deleted stale partial upload " + writeFolder.relativize(file));
+                    }
+                }
+                catch (IOException e)
+                {
+                    // Gone in the meantime, or tried again with the next sweep
+                }
+                finally
+                {
+                    activePartials.remove(file);
+                }
+            }
+        }
+        catch (IOException | UncheckedIOException e)
+        {
+            System.out.println("Could not sweep partial uploads: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Gives a completed upload its final name. With durable writes the data is forced to disk before the file
+     * becomes visible and the folder after, so a crash never leaves a visible file that isn't on disk. If the
+     * folder can't be forced, the file is moved back and the upload fails.
+     * @param partial file holding the upload
+     * @param target final name of the file
+     * @throws FileAlreadyExistsException if a file with the name was stored meanwhile
+     * @throws IOException if the file couldn't be moved or forced to disk
+     * @throws InterruptedException if waiting for the file to be forced was interrupted
+     */
+    private void publish(Path partial, Path target) throws IOException, InterruptedException
+    {
+        makeDurable(Collections.singletonList(partial), Collections.emptyList());
+
+        // Unlike a rename, a link fails if the name is taken, and it makes the complete file visible in one step
+        boolean linked;
+        try
+        {
+            Files.createLink(target, partial);
+            linked = true;
+        }
+        catch (FileAlreadyExistsException e)
+        {
+            throw e;
+        }
+        catch (UnsupportedOperationException | FileSystemException e)
+        {
+            // Links aren't supported here, the move still fails if the name is taken
+            linked = false;
+        }
+        if (linked)
+            Files.delete(partial);
+        else
+            Files.move(partial, target);
+
+        try
+        {
+            // The data is on disk already, only the new entry in the folder has to be
+            makeDurable(Collections.emptyList(), Collections.singletonList(target.toAbsolutePath().getParent()));
+        }
+        catch (IOException | InterruptedException e)
+        {
+            Files.move(target, partial);
+            throw e;
+        }
+    }
+
+    /**
+     * Waits until stored files are forced to disk, so an upload is only acknowledged once it would survive a power
+     * failure. The files join the next group commit batch. Does nothing unless durable writes are enabled.
+     * @param files files whose data has to be made durable
+     * @param folders folders whose entries have to be made durable, forced after the files
+     * @throws IOException if a file or folder couldn't be forced to disk
+     * @throws InterruptedException if the wait was interrupted
+     */
+    private void makeDurable(List<Path> files, List<Path> folders) throws IOException, InterruptedException
+    {
+        if (groupCommitter == null)
+            return;
+
+        try
+        {
+            groupCommitter.submit(files, folders).get();
+        }
+        catch (ExecutionException e)
+        {
+            throw new IOException("Upload could not be forced to disk", e.getCause());
+        }
+    }
+
+    /**
+     * Creates an ACK-packet
+     * @param socket client connection socket
+     * @param blockNumber block number to acknowledge
+     * @return the packet
+     */
+    private DatagramPacket createACK(DatagramSocket socket, int blockNumber)
+    {
+        byte[] ACK = new byte[4];
+
+        //set opcode
+        ACK[0] = 0;
+        ACK[1] = OP_ACK;
+
+        //set block number
+        ACK[2] = (byte) ((blockNumber >> 8) & 0xff);
+        ACK[3] = (byte) (blockNumber & 0xff);
+
+        return new DatagramPacket(ACK, ACK.length, socket.getInetAddress(), socket.getPort());
+    }
+
     /**
      * Sends an error-message to receiver
      * @param socket client connection socket
@@ -695,6 +1981,32 @@ public class TFTPServer
      */
     private boolean send_ERR(DatagramSocket socket, int errorCode, String message) {
 
+        byte[] buf = createERR(errorCode, message);
+
+        // Create datapacket and send message
+        DatagramPacket errorPacket = new DatagramPacket(buf, buf.length, socket.getInetAddress(), socket.getPort());
+        TransferEvents.error((InetSocketAddress) socket.getRemoteSocketAddress(), true, errorCode, message);
+
+        try
+        {
+            socket.send(errorPacket);
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Creates an error-packet
+     * @param errorCode Error code (0-8 supported)
+     * @param message Error message
+     * @return the packet contents
+     */
+    private static byte[] createERR(int errorCode, String message)
+    {
         byte[] mess = message.getBytes();
 
         // + 5 so we got space for Opcode, error-code and terminating byte
@@ -714,19 +2026,20 @@ public class TFTPServer
         // Set terminating byte in the end
         buf[buf.length -1] = 0;
 
-        // Create datapacket and send message
-        DatagramPacket errorPacket = new DatagramPacket(buf, buf.length, socket.getInetAddress(), socket.getPort());
-
-        try
-        {
-            socket.send(errorPacket);
-        }
-        catch (IOException e)
-        {
-            return false;
-        }
+        return buf;
+    }
 
-        return true;
+    /**
+     * Extracts the message of a received error-packet
+     * @param packet error-packet
+     * @return the message, without the terminating byte
+     */
+    private String errorMessageOf(DatagramPacket packet)
+    {
+        int end = 4;
+        while (end < packet.getLength() && packet.getData()[end] != 0)
+            end++;
+        return new String(packet.getData(), 4, Math.max(0, end - 4));
     }
 
     /**
@@ -736,7 +2049,89 @@ public class TFTPServer
      */
     private boolean hasEnoughSpace(long fileSize) throws IOException
     {
-        return (getFolderSize(WRITEDIR) + fileSize) <= WRITE_FOLDER_SIZE_LIMIT;
+        // The chunk store keeps count of its unique bytes, so its many chunk files aren't traversed
+        long used = chunkStore == null ? getFolderSize(config.writeDir)
+                : getFolderSize(config.writeDir, config.writeDir + ChunkStore.DIRECTORY) + chunkStore.storedBytes();
+        return (used + fileSize) <= config.writeFolderSizeLimit;
+    }
+
+    /**
+     * Stops accepting transfers, the running transfers are finished
+     * @return number of transfers still running
+     */
+    int drain()
+    {
+        draining = true;
+        System.out.println("Draining, new transfers are refused.");
+        return activeTransfers.get();
+    }
+
+    /**
+     * Accepts transfers again after drain()
+     */
+    void resume()
+    {
+        draining = false;
+        System.out.println("Resumed, accepting transfers.");
+    }
+
+    /**
+     * @return transfer counters and resource usage of the JVM, by name
+     */
+    Map<String, String> stats()
+    {
+        Map<String, String> stats = new LinkedHashMap<>();
+        Runtime runtime = Runtime.getRuntime();
+
+        stats.put("uptime.ms", Long.toString(System.currentTimeMillis() - startTime));
+        stats.put("ready", Boolean.toString(ready));
+        synchronized (startupPhases)
+        {
+            for (Map.Entry<String, Long> phase : startupPhases.entrySet())
+            {
+                stats.put("startup." + phase.getKey() + ".ms", Long.toString(phase.getValue()));
+            }
+        }
+        stats.put("draining", Boolean.toString(draining));
+        stats.put("transfers.active", Integer.toString(activeTransfers.get()));
+        stats.put("transfers.total", Long.toString(totalTransfers.get()));
+        stats.put("transfers.failed", Long.toString(failedTransfers.get()));
+        stats.put("transfers.refused", Long.toString(refusedTransfers.get()));
+        stats.put("bytes", Long.toString(totalBytes.get()));
+        stats.put("retransmits", Long.toString(totalRetransmits.get()));
+        stats.put("packets.rejected", Long.toString(rejectedPackets.get()));
+        stats.put("packets.rateLimited", Long.toString(rateLimitedPackets.get()));
+        stats.put("read.files", Integer.toString(readBackend == null ? 0 : readBackend.size()));
+        if (readBackend != null)
+            readBackend.putStats(stats);
+        if (chunkStore != null)
+            stats.put("chunks.storedBytes", Long.toString(chunkStore.storedBytes()));
+        if (groupCommitter != null)
+        {
+            stats.put("commit.batches", Long.toString(groupCommitter.batches()));
+            stats.put("commit.uploads", Long.toString(groupCommitter.requests()));
+        }
+        stats.put("heap.used", Long.toString(runtime.totalMemory() - runtime.freeMemory()));
+        stats.put("heap.committed", Long.toString(runtime.totalMemory()));
+
+        // Heap left after the last collection of each pool, a steady rise means objects are leaking
+        long afterGc = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+        {
+            MemoryUsage usage = pool.getCollectionUsage();
+            if (pool.getType() == MemoryType.HEAP && usage != null)
+                afterGc += usage.getUsed();
+        }
+        stats.put("heap.afterGc", Long.toString(afterGc));
+        stats.put("threads", Integer.toString(ManagementFactory.getThreadMXBean().getThreadCount()));
+
+        // Open file descriptors are only known on Unix-like systems
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.UnixOperatingSystemMXBean)
+        {
+            stats.put("fds.open", Long.toString(((com.sun.management.UnixOperatingSystemMXBean) os).getOpenFileDescriptorCount()));
+        }
+        return stats;
     }
 
     /**
@@ -745,6 +2140,17 @@ public class TFTPServer
      * @return total size of directory in bytes
      */
     private long getFolderSize(String filePath)
+    {
+        return getFolderSize(filePath, null);
+    }
+
+    /**
+     * Calculates the size of a directory, leaving out one subdirectory
+     * @param filePath Directory path
+     * @param excluded Subdirectory that isn't counted, null to count everything
+     * @return total size of directory in bytes
+     */
+    private long getFolderSize(String filePath, String excluded)
     {
         // Source/Inspiration for codeblock below: http://www.baeldung.com/java-folder-size
         File dir = new File(filePath);
@@ -758,9 +2164,9 @@ public class TFTPServer
             for (File currentFile : filesinDir) {
                 if (currentFile.isFile()) {
                     directorySize += currentFile.length();
-                } else {
+                } else if (excluded == null || !currentFile.equals(new File(excluded))) {
                     // Recursive call for subdirectories
-                    directorySize += getFolderSize(currentFile.getPath());
+                    directorySize += getFolderSize(currentFile.getPath(), excluded);
                 }
             }
         }
@@ -0,0 +1,233 @@
+import jdk.jfr.*;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * Java Flight Recorder events for the transfers, so GC pauses and stalled threads in a recording can be matched
+ * with the transfers they hit. The transfer handled by the current thread is remembered when it begins, which
+ * lets the per-packet events carry the file and client without passing them around.
+ *
+ * The events are cheap while nobody is recording: nothing is filled in unless the event is enabled, and no
+ * stack traces are taken.
+ */
+public class TransferEvents
+{
+    private static final ThreadLocal<TransferStats> current = new ThreadLocal<>();
+
+    @Name("tftp.Transfer")
+    @Label("Transfer")
+    @Description("A read or write request, from the request until the transfer ends")
+    @Category("TFTP")
+    @StackTrace(false)
+    static class TransferEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Client")
+        String client;
+
+        @Label("Request")
+        String request;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+
+        @Label("Retransmits")
+        int retransmits;
+
+        @Label("Success")
+        boolean success;
+    }
+
+    @Name("tftp.Retransmit")
+    @Label("Retransmit")
+    @Description("A DATA, ACK or OACK packet sent again")
+    @Category("TFTP")
+    @StackTrace(false)
+    static class RetransmitEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Client")
+        String client;
+
+        @Label("Block Number")
+        @Description("Sequence number of the block, counted from 1 without wrapping at 65535")
+        long blockNumber;
+
+        @Label("Bytes")
+        @DataAmount
+        int bytes;
+    }
+
+    @Name("tftp.Timeout")
+    @Label("Timeout")
+    @Description("No packet arrived from the client within the waiting limit")
+    @Category("TFTP")
+    @StackTrace(false)
+    static class TimeoutEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Client")
+        String client;
+
+        @Label("Block Number")
+        @Description("Sequence number of the block, counted from 1 without wrapping at 65535")
+        long blockNumber;
+    }
+
+    @Name("tftp.Error")
+    @Label("Error")
+    @Description("An ERROR packet sent to or received from a client")
+    @Category("TFTP")
+    @StackTrace(false)
+    static class ErrorEvent extends Event
+    {
+        @Label("File")
+        String file;
+
+        @Label("Client")
+        String client;
+
+        @Label("Sent")
+        @Description("True if the server sent the error, false if the client did")
+        boolean sent;
+
+        @Label("Error Code")
+        int errorCode;
+
+        @Label("Message")
+        String message;
+    }
+
+    /**
+     * Starts the event of a transfer handled by the current thread
+     * @param stats counters of the transfer
+     * @return the event, to be passed to end()
+     */
+    public static TransferEvent begin(TransferStats stats)
+    {
+        current.set(stats);
+        TransferEvent event = new TransferEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Ends the event of a transfer
+     * @param event event returned by begin()
+     * @param stats counters of the transfer
+     */
+    public static void end(TransferEvent event, TransferStats stats)
+    {
+        current.remove();
+        event.end();
+        if (event.shouldCommit())
+        {
+            event.file = stats.file;
+            event.client = clientOf(stats.client);
+            event.request = stats.opcode == 1 ? "RRQ" : "WRQ";
+            event.bytes = stats.bytes;
+            event.retransmits = stats.retransmits;
+            event.success = stats.success;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param blockNumber sequence number of the block sent again (or acknowledged again), 0 for an OACK
+     * @param bytes payload bytes sent again
+     */
+    public static void retransmit(long blockNumber, int bytes)
+    {
+        RetransmitEvent event = new RetransmitEvent();
+        if (event.shouldCommit())
+        {
+            TransferStats stats = current.get();
+            if (stats != null)
+            {
+                event.file = stats.file;
+                event.client = clientOf(stats.client);
+            }
+            event.blockNumber = blockNumber;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param blockNumber sequence number of the block waited for
+     */
+    public static void timeout(long blockNumber)
+    {
+        TimeoutEvent event = new TimeoutEvent();
+        if (event.shouldCommit())
+        {
+            TransferStats stats = current.get();
+            if (stats != null)
+            {
+                event.file = stats.file;
+                event.client = clientOf(stats.client);
+            }
+            event.blockNumber = blockNumber;
+            event.commit();
+        }
+    }
+
+    /**
+     * @param client address of the client, used when the error isn't part of a transfer
+     * @param sent true if the server sent the error, false if it was received
+     * @param errorCode TFTP error code
+     * @param message error message
+     */
+    public static void error(InetSocketAddress client, boolean sent, int errorCode, String message)
+    {
+        ErrorEvent event = new ErrorEvent();
+        if (event.shouldCommit())
+        {
+            TransferStats stats = current.get();
+            if (stats != null)
+            {
+                event.file = stats.file;
+                client = stats.client;
+            }
+            event.client = clientOf(client);
+            event.sent = sent;
+            event.errorCode = errorCode;
+            event.message = message;
+            event.commit();
+        }
+    }
+
+    /**
+     * Records an error-packet sent in answer to a packet that didn't start a transfer, e.g. a rejected request
+     * @param address source address of the packet
+     * @param port source port of the packet
+     * @param errorCode TFTP error code
+     * @param message error message
+     */
+    public static void rejected(InetAddress address, int port, int errorCode, String message)
+    {
+        ErrorEvent event = new ErrorEvent();
+        if (event.shouldCommit())
+        {
+            event.client = address.getHostAddress() + ":" + port;
+            event.sent = true;
+            event.errorCode = errorCode;
+            event.message = message;
+            event.commit();
+        }
+    }
+
+    private static String clientOf(InetSocketAddress client)
+    {
+        // No name lookups, only the numeric address
+        return client == null ? null : client.getAddress().getHostAddress() + ":" + client.getPort();
+    }
+}
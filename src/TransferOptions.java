@@ -0,0 +1,177 @@
+import java.io.ByteArrayOutputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Holds the options (RFC 2347) that a client appended to its RRQ/WRQ, together with the options the server
+ * has accepted and will echo back in an OACK-packet.
+ */
+public class TransferOptions
+{
+    // Option names, always stored in lower case
+    public static final String OPT_OFFSET = "offset"; // Byte offset a read should start at
+    public static final String OPT_BLOCK = "block"; // Block number a read should restart at (1 = start of file)
+    public static final String OPT_TOKEN = "token"; // Client chosen token that identifies a resumable upload
+    public static final String OPT_SHA256 = "sha256"; // SHA-256 of the file: returned on RRQ, expected on WRQ
+    public static final String OPT_CRC32C = "crc32c"; // CRC32C of the file, returned on RRQ
+    public static final String OPT_DEDUP = "dedup"; // Set by the server when an upload was skipped as a duplicate, answered with ACK 0
+    public static final String OPT_WINDOWSIZE = "windowsize"; // Number of blocks sent before waiting for an ACK (RFC 7440)
+    public static final String OPT_TSIZE = "tsize"; // Size of the file (RFC 2349)
+    public static final String OPT_COMPRESS = "compress"; // Codecs the client accepts for a read, in order of preference
+
+    private static final int MAX_TOKEN_LENGTH = 64;
+
+    private final Map<String, String> requested = new LinkedHashMap<>();
+    private final Map<String, String> accepted = new LinkedHashMap<>();
+
+    /**
+     * Stores an option found in the request. Option names are case-insensitive.
+     * @param name option name
+     * @param value option value
+     */
+    public void put(String name, String value)
+    {
+        requested.put(name.toLowerCase(), value);
+    }
+
+    /**
+     * @param name option name
+     * @return true if the client requested the option
+     */
+    public boolean has(String name)
+    {
+        return requested.containsKey(name);
+    }
+
+    /**
+     * @param name option name
+     * @return value requested by the client, null if the option wasn't requested
+     */
+    public String get(String name)
+    {
+        return requested.get(name);
+    }
+
+    /**
+     * Parses a requested option as a non-negative number
+     * @param name option name
+     * @param defaultValue value to return if the option wasn't requested
+     * @return the requested value
+     * @throws NumberFormatException if the value isn't a non-negative number
+     */
+    public long getLong(String name, long defaultValue)
+    {
+        String value = requested.get(name);
+        if (value == null)
+        {
+            return defaultValue;
+        }
+
+        long number = Long.parseLong(value);
+        if (number < 0)
+        {
+            throw new NumberFormatException("Negative value for option " + name);
+        }
+        return number;
+    }
+
+    /**
+     * Returns the resume-token of the request, if it is well-formed. Tokens end up in file names, so only
+     * letters, digits, '-' and '_' are allowed.
+     * @return the token, null if no token was requested
+     * @throws NumberFormatException if the token contains illegal characters
+     */
+    public String getToken()
+    {
+        String token = requested.get(OPT_TOKEN);
+        if (token == null)
+        {
+            return null;
+        }
+
+        if (token.isEmpty() || token.length() > MAX_TOKEN_LENGTH)
+        {
+            throw new NumberFormatException("Invalid token length");
+        }
+
+        for (int i = 0; i < token.length(); i++)
+        {
+            char c = token.charAt(i);
+            if (!Character.isLetterOrDigit(c) && c != '-' && c != '_')
+            {
+                throw new NumberFormatException("Invalid character in token");
+            }
+        }
+        return token;
+    }
+
+    /**
+     * Returns the SHA-256 checksum the client expects an upload to have, if it is well-formed
+     * @return lower case hex-string, null if no checksum was requested
+     * @throws NumberFormatException if the value isn't a SHA-256 hex-string
+     */
+    public String getSha256()
+    {
+        String sha256 = requested.get(OPT_SHA256);
+        if (sha256 == null)
+        {
+            return null;
+        }
+
+        if (!sha256.matches("[0-9a-fA-F]{64}"))
+        {
+            throw new NumberFormatException("Invalid SHA-256 checksum");
+        }
+        return sha256.toLowerCase();
+    }
+
+    /**
+     * Marks an option as accepted, it will be included in the OACK-packet
+     * @param name option name
+     * @param value value the server agreed on
+     */
+    public void accept(String name, String value)
+    {
+        accepted.put(name, value);
+    }
+
+    /**
+     * @return true if the server accepted at least one option, i.e., an OACK-packet has to be sent
+     */
+    public boolean hasAccepted()
+    {
+        return !accepted.isEmpty();
+    }
+
+    /**
+     * Builds the OACK-packet for the accepted options
+     * @param opcode opcode to use for the packet
+     * @return the packet contents
+     */
+    public byte[] toOACK(int opcode)
+    {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // Set opcode
+        out.write(0);
+        out.write(opcode);
+
+        // Each option is stored as name, 0, value, 0
+        for (Map.Entry<String, String> option : accepted.entrySet())
+        {
+            byte[] name = option.getKey().getBytes();
+            byte[] value = option.getValue().getBytes();
+            out.write(name, 0, name.length);
+            out.write(0);
+            out.write(value, 0, value.length);
+            out.write(0);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public String toString()
+    {
+        return requested.toString();
+    }
+}
@@ -0,0 +1,38 @@
+import java.net.InetSocketAddress;
+
+/**
+ * Counters kept for a single transfer, written to the audit log when the transfer ends.
+ * Only touched by the thread handling the transfer.
+ */
+public class TransferStats
+{
+    public final InetSocketAddress client;
+    public final String file;
+    public final int opcode;
+    public final long startTime = System.currentTimeMillis();
+    private final long startNanos = System.nanoTime();
+
+    public long bytes = 0; // Payload bytes acknowledged
+    public int retransmits = 0; // Packets (DATA, ACK or OACK) sent again
+    public boolean success = false;
+
+    /**
+     * @param client address of the client
+     * @param file requested file
+     * @param opcode RRQ or WRQ
+     */
+    public TransferStats(InetSocketAddress client, String file, int opcode)
+    {
+        this.client = client;
+        this.file = file;
+        this.opcode = opcode;
+    }
+
+    /**
+     * @return milliseconds since the transfer started
+     */
+    public long durationMillis()
+    {
+        return (System.nanoTime() - startNanos) / 1000000;
+    }
+}
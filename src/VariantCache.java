@@ -0,0 +1,105 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size-bounded cache of transformed variants of files (e.g. compressed), so repeated requests don't pay for the
+ * transformation again. Each variant is stored with the SHA-256 of the file it was made from, which is checked
+ * against the integrity index on every lookup. The least recently used variants are evicted first.
+ */
+public class VariantCache
+{
+    // Stored for transformations that weren't worth it, so they aren't attempted again
+    private static final byte[] NOT_WORTHWHILE = new byte[0];
+
+    /**
+     * Transformation producing a variant of a file
+     */
+    public interface Transform
+    {
+        /**
+         * @param file file to transform
+         * @return the variant, null if the variant isn't worth serving
+         * @throws IOException if the file can't be read
+         */
+        byte[] apply(Path file) throws IOException;
+    }
+
+    private static class Variant
+    {
+        final byte[] sourceSha256;
+        final byte[] data;
+
+        Variant(byte[] sourceSha256, byte[] data)
+        {
+            this.sourceSha256 = sourceSha256;
+            this.data = data;
+        }
+    }
+
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private final LinkedHashMap<String, Variant> variants = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * @param maxBytes total size of the cached variants
+     */
+    public VariantCache(long maxBytes)
+    {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a variant of a file, transforming the file if there is no valid cached variant
+     * @param file file the variant is made from
+     * @param kind name of the variant, e.g. the compression codec
+     * @param sourceSha256 current SHA-256 of the file, from the integrity index
+     * @param transform transformation used if the variant has to be made
+     * @return the variant, null if it isn't worth serving
+     * @throws IOException if the file can't be read
+     */
+    public byte[] get(Path file, String kind, byte[] sourceSha256, Transform transform) throws IOException
+    {
+        String key = kind + ":" + file.normalize();
+
+        synchronized (this)
+        {
+            Variant cached = variants.get(key);
+            if (cached != null && Arrays.equals(cached.sourceSha256, sourceSha256))
+            {
+                return cached.data == NOT_WORTHWHILE ? null : cached.data;
+            }
+        }
+
+        // Transform outside the lock, so other lookups aren't blocked meanwhile
+        byte[] data = transform.apply(file);
+        Variant variant = new Variant(sourceSha256, data == null ? NOT_WORTHWHILE : data);
+
+        synchronized (this)
+        {
+            Variant old = variants.put(key, variant);
+            if (old != null)
+            {
+                usedBytes -= old.data.length;
+            }
+            usedBytes += variant.data.length;
+
+            // Evict least recently used variants, but always keep the one just added
+            Iterator<Map.Entry<String, Variant>> it = variants.entrySet().iterator();
+            while (usedBytes > maxBytes && it.hasNext())
+            {
+                Map.Entry<String, Variant> eldest = it.next();
+                if (eldest.getValue() != variant)
+                {
+                    usedBytes -= eldest.getValue().data.length;
+                    it.remove();
+                }
+            }
+        }
+
+        return data;
+    }
+}
@@ -0,0 +1,26 @@
+#!/bin/sh
+# Starts the TFTP server with an AppCDS archive of its classes, so the JVM starts without loading and verifying
+# them again. The first start makes the archive with a training run: the server warms up as configured, then
+# exits and the JVM dumps every class it loaded. Archives only work with classes from a jar, which is packed
+# from the compiled classes if it's missing.
+#
+# usage: ./tftp-server.sh [config-file]
+#   CLASSES  folder with the compiled classes (default: out)
+#   JAR      jar the server runs from (default: tftp.jar)
+#   ARCHIVE  archive file (default: tftp.jsa)
+# Delete the jar and the archive after a rebuild.
+
+CLASSES=${CLASSES:-out}
+JAR=${JAR:-tftp.jar}
+ARCHIVE=${ARCHIVE:-tftp.jsa}
+
+if [ ! -f "$JAR" ]; then
+    jar --create --file "$JAR" -C "$CLASSES" . || exit 1
+fi
+
+if [ ! -f "$ARCHIVE" ]; then
+    echo "Creating class archive $ARCHIVE"
+    java -XX:ArchiveClassesAtExit="$ARCHIVE" -cp "$JAR" TFTPServer -exit-when-ready "$@" || exit 1
+fi
+
+exec java -XX:SharedArchiveFile="$ARCHIVE" -cp "$JAR" TFTPServer "$@"